@@ -0,0 +1,100 @@
+package de.intranda.goobi.plugins.step.xmp;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Executes steps in the background, so the workflow thread is released immediately. The executor is shared by all steps in the JVM, the number of
+ * steps running at the same time and the number of waiting steps are limited. A step can be queued only once.
+ */
+@Log4j2
+final class AsyncStepRunner {
+
+    // maximum number of steps waiting for a free thread
+    private static final int QUEUE_SIZE = 100;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+        Thread t = new Thread(r, "xmp-header-async-" + threadCounter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final ScheduledExecutorService progressService = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "xmp-header-progress");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // ids of the queued and running steps
+    private static final Set<Integer> activeSteps = ConcurrentHashMap.newKeySet();
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private AsyncStepRunner() {
+    }
+
+    /**
+     * Queue a step
+     *
+     * @param stepId id of the step
+     * @param jobs maximum number of steps running at the same time, the value of the last call is used for all steps
+     * @param job the job
+     * @return false, if the queue is full. Otherwise the step was queued or is already queued
+     */
+    static boolean submit(int stepId, int jobs, Runnable job) {
+        resize(Math.max(1, jobs));
+        if (!activeSteps.add(stepId)) {
+            log.info("XMP Plugin: step with ID " + stepId + " is already queued");
+            return true;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    job.run();
+                } finally {
+                    activeSteps.remove(stepId);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            activeSteps.remove(stepId);
+            return false;
+        }
+    }
+
+    /**
+     * Run a task repeatedly while the step is running
+     *
+     * @param task the task
+     * @param seconds interval in seconds
+     * @return the scheduled task, to be cancelled when the step is finished
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long seconds) {
+        return progressService.scheduleWithFixedDelay(task, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    private static synchronized void resize(int jobs) {
+        if (jobs > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(jobs);
+            executor.setCorePoolSize(jobs);
+        } else if (jobs < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(jobs);
+            executor.setMaximumPoolSize(jobs);
+        }
+    }
+
+}
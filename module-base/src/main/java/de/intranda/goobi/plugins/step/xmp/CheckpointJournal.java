@@ -0,0 +1,148 @@
+package de.intranda.goobi.plugins.step.xmp;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Journal of the images of a single folder that were written by an unfinished run. Each image is added as soon as it was written (and uploaded in S3
+ * mode), so a retry of the step continues with the remaining images. The journal belongs to a version of the configuration, a journal of another
+ * version is discarded. It is deleted when the step was finished successfully.
+ */
+@Log4j2
+final class CheckpointJournal {
+
+    private final Path file;
+
+    // images written by earlier runs and the hash of their fields
+    private final Map<String, String> completed = new HashMap<>();
+
+    // images that get written in this run, they are added to the journal when they are confirmed
+    private final Map<String, String> pending = new ConcurrentHashMap<>();
+
+    private BufferedWriter writer;
+
+    private int resumed;
+
+    private CheckpointJournal(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the journal of the folder. Journals of other configuration versions are deleted
+     *
+     * @param directory location of the journal
+     * @param folder name of the journal, unique for the process and the image folder
+     * @param version version of the configuration
+     * @return the journal
+     * @throws IOException if the directory cannot be read
+     */
+    static CheckpointJournal open(Path directory, String folder, String version) throws IOException {
+        String prefix = "xmp_checkpoint_" + folder + "_";
+        String fileName = prefix + version + ".txt";
+        CheckpointJournal journal = new CheckpointJournal(directory.resolve(fileName));
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*.txt")) {
+            for (Path other : files) {
+                String name = other.getFileName().toString();
+                // the version has a fixed length, longer names belong to other folders with the same prefix
+                if (name.length() == fileName.length() && !name.equals(fileName)) {
+                    log.debug("XMP Plugin: delete checkpoint of an older configuration " + other);
+                    Files.deleteIfExists(other);
+                }
+            }
+        }
+        if (Files.exists(journal.file)) {
+            List<String> lines = Files.readAllLines(journal.file, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                // the last line may be incomplete, if the previous run was aborted
+                String[] parts = line.split("\t");
+                if (parts.length == 2 && parts[1].length() == 32) {
+                    journal.completed.put(parts[0], parts[1]);
+                }
+            }
+            log.debug("XMP Plugin: checkpoint " + journal.file + " contains " + journal.completed.size() + " images");
+        }
+        return journal;
+    }
+
+    /**
+     * Check if the image was already written by an earlier run with the same fields. Otherwise it is remembered until it is confirmed
+     *
+     * @param name file name of the image
+     * @param hash hash of the fields
+     * @return true, if the image can be skipped
+     */
+    boolean isCompleted(String name, String hash) {
+        if (hash.equals(completed.get(name))) {
+            resumed++;
+            return true;
+        }
+        pending.put(name, hash);
+        return false;
+    }
+
+    /**
+     * Add a written image to the journal. The entry is flushed immediately, so it survives an abort of the run
+     *
+     * @param image the image
+     */
+    synchronized void confirm(Path image) {
+        String name = image.getFileName().toString();
+        String hash = pending.remove(name);
+        if (hash == null) {
+            return;
+        }
+        try {
+            if (writer == null) {
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(name + "\t" + hash + "\n");
+            writer.flush();
+        } catch (IOException e) {
+            // the image gets written again by the next run
+            log.warn("XMP Plugin: cannot write checkpoint " + file, e);
+        }
+    }
+
+    /**
+     * @return number of images skipped because they were written by an earlier run
+     */
+    int getResumed() {
+        return resumed;
+    }
+
+    synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.warn("XMP Plugin: cannot close checkpoint " + file, e);
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Delete the journal, called after the step was finished
+     */
+    void delete() {
+        close();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("XMP Plugin: cannot delete checkpoint " + file, e);
+        }
+    }
+
+}
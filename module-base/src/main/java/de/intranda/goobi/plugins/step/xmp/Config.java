@@ -1,27 +1,115 @@
 package de.intranda.goobi.plugins.step.xmp;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import de.intranda.goobi.plugins.step.xmp.util.ImageMetadataField;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Setter;
 
+/**
+ * Parsed configuration block. The instances are shared by all steps, they cannot be changed after they were read from the configuration file.
+ */
 @Data
+@Setter(AccessLevel.PACKAGE)
 public class Config {
 
 //    private boolean useMasterFolder;
 //    private boolean useDerivateFolder;
 
     private List<String> folders = new ArrayList<String>();
+
+    // folders with output="sidecar", the fields are written into an xmp file next to each image instead of the image itself
+    private List<String> sidecarFolders = new ArrayList<>();
     
+    // exiftool: use the configured command for all images, native: write jpeg and tiff files directly, other files with the command
+    private String writer = "exiftool";
+
     private String command;
     private List<String> parameter;
 
+    // script: run the command for each image, stayOpen: send the images to a pool of running exiftool processes, batch: run the command once for
+    // several images
+    private String executionMode = "script";
+    // maximum number of exiftool processes in stayOpen mode
+    private int poolSize = 2;
+    // time in seconds after which an unused exiftool process gets stopped
+    private long idleTimeout = 300;
+    // number of images written concurrently
+    private int threads = 1;
+    // number of images written with a single call in batch mode, 0 means all images of the folder
+    private int batchSize = 100;
+
+    // maximum number of images with the same fields written by a single call in script mode, used for the default configuration
+    private int groupSize = 100;
+
+    // number of images that are downloaded, written and uploaded concurrently in S3 mode
+    private int s3InFlight = 4;
+    // maximum size in MB of the images stored in the temporary folder at the same time in S3 mode
+    private long s3DiskBudget = 2048;
+    // number of concurrent uploads in S3 mode
+    private int s3Uploads = 4;
+
+    // write only images whose fields or file have changed since the last run
+    private boolean incremental;
+
+    // write the images in the background and close the step afterwards
+    private boolean async;
+    // maximum number of steps written in the background at the same time, shared by all steps
+    private int asyncJobs = 2;
+    // interval in seconds for the progress entries in the journal in background mode, 0 disables them
+    private int progressInterval = 120;
+
+    // read only the structure and the configured metadata types from the METS file instead of the complete document
+    private boolean streamMetadata;
+
     private List<ImageMetadataField> configuredFields = new ArrayList<>();
 
-    public void addField(ImageMetadataField field) {
+    // hash of the settings that influence the written data, checkpoints of other versions are discarded
+    private String version;
+
+    void addField(ImageMetadataField field) {
         configuredFields.add(field);
     }
 
+    /**
+     * @param folder configured folder name
+     * @return true, if sidecar files are written for the images of the folder
+     */
+    public boolean isSidecarFolder(String folder) {
+        return sidecarFolders.contains(folder);
+    }
+
+    /**
+     * Make the lists unmodifiable, called after the configuration was read
+     */
+    void freeze() {
+        folders = Collections.unmodifiableList(new ArrayList<>(folders));
+        sidecarFolders = Collections.unmodifiableList(new ArrayList<>(sidecarFolders));
+        if (parameter != null) {
+            parameter = Collections.unmodifiableList(new ArrayList<>(parameter));
+        }
+        for (ImageMetadataField field : configuredFields) {
+            field.setFieldList(Collections.unmodifiableList(new ArrayList<>(field.getFieldList())));
+        }
+        configuredFields = Collections.unmodifiableList(new ArrayList<>(configuredFields));
+        version = computeVersion();
+    }
+
+    private String computeVersion() {
+        List<Map.Entry<String, String>> settings = new ArrayList<>();
+        settings.add(new AbstractMap.SimpleImmutableEntry<>("writer", writer));
+        settings.add(new AbstractMap.SimpleImmutableEntry<>("command", command));
+        settings.add(new AbstractMap.SimpleImmutableEntry<>("parameter", String.valueOf(parameter)));
+        settings.add(new AbstractMap.SimpleImmutableEntry<>("sidecarFolders", sidecarFolders.toString()));
+        for (ImageMetadataField field : configuredFields) {
+            settings.add(new AbstractMap.SimpleImmutableEntry<>(field.getXmpName(), field.getSeparator() + field.getFieldList()));
+        }
+        return FingerprintManifest.hash(settings).substring(0, 16);
+    }
+
 }
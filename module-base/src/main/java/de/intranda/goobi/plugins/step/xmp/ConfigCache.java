@@ -0,0 +1,291 @@
+package de.intranda.goobi.plugins.step.xmp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+
+import de.intranda.goobi.plugins.step.xmp.util.DocstructField;
+import de.intranda.goobi.plugins.step.xmp.util.FilenameField;
+import de.intranda.goobi.plugins.step.xmp.util.ImageMetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.MetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.ProcesspropertyField;
+import de.intranda.goobi.plugins.step.xmp.util.StaticText;
+import de.intranda.goobi.plugins.step.xmp.util.TemplatepropertyField;
+import de.intranda.goobi.plugins.step.xmp.util.VariableField;
+import de.intranda.goobi.plugins.step.xmp.util.WorkpiecepropertyField;
+import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.config.ConfigurationHelper;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * JVM wide cache of the parsed plugin configuration. The configuration file is parsed only once and parsed again when its modification time changes.
+ * The configuration block of a project and step is resolved once per file version, later lookups are a simple map access.
+ */
+@Log4j2
+final class ConfigCache {
+
+    private static final Map<String, ParsedConfiguration> CACHE = new ConcurrentHashMap<>();
+
+    private ConfigCache() {
+    }
+
+    /**
+     * Get the current configuration of the plugin
+     *
+     * @param title name of the plugin
+     * @return the parsed configuration, parsed again if the file was changed
+     */
+    static ParsedConfiguration get(String title) {
+        Path file = Paths.get(ConfigurationHelper.getInstance().getConfigurationFolder(), "plugin_" + title + ".xml");
+        long lastModified = getLastModified(file);
+        ParsedConfiguration parsed = CACHE.get(title);
+        if (parsed == null || parsed.lastModified != lastModified) {
+            synchronized (ConfigCache.class) {
+                parsed = CACHE.get(title);
+                if (parsed == null || parsed.lastModified != lastModified) {
+                    log.debug("XMP Plugin: parse configuration file " + file);
+                    parsed = new ParsedConfiguration(ConfigPlugins.getPluginConfig(title), lastModified);
+                    CACHE.put(title, parsed);
+                }
+            }
+        }
+        return parsed;
+    }
+
+    private static long getLastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            // file not found, the configuration is loaded from another location
+            return -1;
+        }
+    }
+
+    /**
+     * A single version of the configuration file
+     */
+    static class ParsedConfiguration {
+
+        private final long lastModified;
+
+        private final List<ConfigBlock> blocks = new ArrayList<>();
+
+        private final Config defaultConfig;
+
+        // resolved configuration by project and step
+        private final Map<List<String>, Config> resolved = new ConcurrentHashMap<>();
+
+        private ParsedConfiguration(XMLConfiguration xmlConfig, long lastModified) {
+            this.lastModified = lastModified;
+            xmlConfig.setExpressionEngine(new XPathExpressionEngine());
+            Config defaultBlock = null;
+            int defaultBlocks = 0;
+            for (HierarchicalConfiguration block : xmlConfig.configurationsAt("/config")) {
+                Config config = initConfig(block);
+                blocks.add(new ConfigBlock(Arrays.asList(block.getStringArray("project")), Arrays.asList(block.getStringArray("step")), config));
+                if ("default".equals(block.getString("@type"))) {
+                    defaultBlock = config;
+                    defaultBlocks++;
+                }
+            }
+            // the default block must be unique
+            defaultConfig = defaultBlocks == 1 ? defaultBlock : null;
+            // the limits are shared by all steps, so they are configured outside of the blocks
+            IoGovernor.getInstance()
+                    .configure(xmlConfig.getInt("/ioLimits/maxConcurrentWrites", 0), xmlConfig.getLong("/ioLimits/maxWriteMbPerSecond", 0));
+        }
+
+        /**
+         * Get the configuration for a project and step. The order of configuration is:
+         * <ol>
+         * <li>project name and step name matches</li>
+         * <li>step name matches and project is *</li>
+         * <li>project name matches and step name is *</li>
+         * <li>project name and step name are *</li>
+         * </ol>
+         * A level is used only if it matches exactly one block.
+         *
+         * @param projectName name of the project
+         * @param stepName name of the step
+         * @return the configuration
+         * @throws IllegalArgumentException if no configuration block matches
+         */
+        Config getConfig(String projectName, String stepName) {
+            return resolved.computeIfAbsent(Arrays.asList(projectName, stepName), k -> {
+                Config config = findUniqueBlock(projectName, stepName);
+                if (config == null) {
+                    config = findUniqueBlock("*", stepName);
+                }
+                if (config == null) {
+                    config = findUniqueBlock(projectName, "*");
+                }
+                if (config == null) {
+                    config = findUniqueBlock("*", "*");
+                }
+                if (config == null) {
+                    throw new IllegalArgumentException("No configuration found for project " + projectName + " and step " + stepName);
+                }
+                return config;
+            });
+        }
+
+        /**
+         * @return configuration of the block with type 'default' or null, if there is no such block
+         */
+        Config getDefaultConfig() {
+            return defaultConfig;
+        }
+
+        private Config findUniqueBlock(String projectName, String stepName) {
+            Config found = null;
+            for (ConfigBlock block : blocks) {
+                if (block.projects.contains(projectName) && block.steps.contains(stepName)) {
+                    if (found != null) {
+                        return null;
+                    }
+                    found = block.config;
+                }
+            }
+            return found;
+        }
+    }
+
+    private static class ConfigBlock {
+        private final List<String> projects;
+        private final List<String> steps;
+        private final Config config;
+
+        private ConfigBlock(List<String> projects, List<String> steps, Config config) {
+            this.projects = projects;
+            this.steps = steps;
+            this.config = config;
+        }
+    }
+
+    /**
+     * reads configfile and sets object variables accordingly, sets defaults for some settings if no value is specified
+     * 
+     * @param xmlconfig configuration block of the config file
+     */
+    private static Config initConfig(HierarchicalConfiguration xmlconfig) {
+        Config config = new Config();
+
+        config.setFolders(Arrays.asList(xmlconfig.getStringArray("folder")));
+        config.setSidecarFolders(Arrays.asList(xmlconfig.getStringArray("folder[@output='sidecar']")));
+        List<HierarchicalConfiguration> metadataFields = xmlconfig.configurationsAt("/imageMetadataField");
+
+        config.setCommand(xmlconfig.getString("command"));
+        config.setParameter(Arrays.asList(xmlconfig.getStringArray("parameter")));
+        config.setExecutionMode(xmlconfig.getString("executionMode", "script"));
+        config.setPoolSize(xmlconfig.getInt("poolSize", 2));
+        config.setIdleTimeout(xmlconfig.getLong("idleTimeout", 300));
+        config.setThreads(xmlconfig.getInt("threads", 1));
+        config.setBatchSize(xmlconfig.getInt("batchSize", 100));
+        config.setWriter(xmlconfig.getString("writer", "exiftool"));
+        config.setGroupSize(xmlconfig.getInt("groupSize", 100));
+        config.setS3InFlight(xmlconfig.getInt("s3InFlight", 4));
+        config.setS3DiskBudget(xmlconfig.getLong("s3DiskBudget", 2048));
+        config.setS3Uploads(xmlconfig.getInt("s3Uploads", 4));
+        config.setIncremental(xmlconfig.getBoolean("incremental", false));
+        config.setAsync(xmlconfig.getBoolean("async", false));
+        config.setAsyncJobs(xmlconfig.getInt("asyncJobs", 2));
+        config.setProgressInterval(xmlconfig.getInt("progressInterval", 120));
+        config.setStreamMetadata(xmlconfig.getBoolean("streamMetadata", false));
+
+        // read xmp fields
+        for (HierarchicalConfiguration fieldElement : metadataFields) {
+            String name = fieldElement.getString("./@name");
+            String fieldSeparator = fieldElement.getString("./separator", " ").replace("\\u0020", " ");
+
+            ImageMetadataField imageMetadataField = new ImageMetadataField();
+            imageMetadataField.setXmpName(name);
+            imageMetadataField.setSeparator(fieldSeparator);
+            config.addField(imageMetadataField);
+
+            // read field configuration
+
+            List<HierarchicalConfiguration> goobiFieldElements = fieldElement.configurationsAt("/goobiField");
+
+            for (HierarchicalConfiguration goobiFieldElement : goobiFieldElements) {
+                // metadata block
+                switch (goobiFieldElement.getString("./type", "metadata")) {
+                    case "metadata":
+                        MetadataField metadataField = new MetadataField();
+                        metadataField.setName(goobiFieldElement.getString("./name"));
+                        metadataField.setUse(goobiFieldElement.getString("./use", "logical"));
+                        metadataField.setSeparator(goobiFieldElement.getString("./separator", " ").replace("\\u0020", " "));
+                        metadataField.setUseFirst(goobiFieldElement.getBoolean("./useFirst", true));
+                        metadataField.setStaticPrefix(goobiFieldElement.getString("./staticPrefix", "").replace("\\u0020", " "));
+                        metadataField.setStaticSuffix(goobiFieldElement.getString("./staticSuffix", "").replace("\\u0020", " "));
+                        imageMetadataField.addField(metadataField);
+                        break;
+                        // docstruct
+                    case "docstruct":
+
+                        DocstructField docStructField = new DocstructField();
+                        docStructField.setLanguage(goobiFieldElement.getString("./language", ""));
+                        docStructField.setSeparator(goobiFieldElement.getString("./separator", " ").replace("\\u0020", " "));
+                        docStructField.setUse(goobiFieldElement.getString("./use", "last"));
+                        imageMetadataField.addField(docStructField);
+                        break;
+                        // static text
+                    case "staticText":
+                        StaticText text = new StaticText();
+                        text.setText(goobiFieldElement.getString("./text"));
+                        imageMetadataField.addField(text);
+                        break;
+
+                    case "processproperty":
+                        ProcesspropertyField field = new ProcesspropertyField();
+                        field.setName(goobiFieldElement.getString("./name"));
+                        field.setSeparator(goobiFieldElement.getString("./separator", " ").replace("\\u0020", " "));
+                        field.setUseFirst(goobiFieldElement.getBoolean("./useFirst", true));
+                        imageMetadataField.addField(field);
+                        break;
+
+                    case "templateproperty":
+                        TemplatepropertyField templ = new TemplatepropertyField();
+                        templ.setName(goobiFieldElement.getString("./name"));
+                        templ.setSeparator(goobiFieldElement.getString("./separator", " ").replace("\\u0020", " "));
+                        templ.setUseFirst(goobiFieldElement.getBoolean("./useFirst", true));
+                        imageMetadataField.addField(templ);
+                        break;
+
+                    case "workpieceproperty":
+                        WorkpiecepropertyField work = new WorkpiecepropertyField();
+                        work.setName(goobiFieldElement.getString("./name"));
+                        work.setSeparator(goobiFieldElement.getString("./separator", " ").replace("\\u0020", " "));
+                        work.setUseFirst(goobiFieldElement.getBoolean("./useFirst", true));
+                        imageMetadataField.addField(work);
+                        break;
+
+                    case "filename":
+                        FilenameField filenameField = new FilenameField();
+                        filenameField.setUseAbsolutePath(goobiFieldElement.getBoolean("./useAbsolutePath", true));
+                        imageMetadataField.addField(filenameField);
+                        break;
+
+                    case "variable":
+                        VariableField variableField = new VariableField();
+                        variableField.setName(goobiFieldElement.getString("./value"));
+                        imageMetadataField.addField(variableField);
+                        break;
+                }
+            }
+        }
+
+        config.freeze();
+        return config;
+    }
+
+}
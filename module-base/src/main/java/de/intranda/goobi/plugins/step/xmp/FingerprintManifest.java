@@ -0,0 +1,195 @@
+package de.intranda.goobi.plugins.step.xmp;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.sub.goobi.helper.StorageProvider;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Manifest of the images of a single folder that were already written in incremental mode. For each image it contains a hash of the written fields
+ * and the configuration version and the size and modification time of the image after it was written. An image is written again only if one of
+ * these values has changed, so a changed command, parameter, writer or output mode writes all images again.
+ */
+@Log4j2
+final class FingerprintManifest {
+
+    private final Path file;
+
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    // hash of images that get written in this run, their file state is read after they were written
+    private final Map<String, String> pending = new LinkedHashMap<>();
+
+    // location of the images, used to read their file state
+    private final Map<String, Path> storedImages = new HashMap<>();
+
+    private FingerprintManifest(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the manifest. If the file does not exist or cannot be read, an empty manifest is returned
+     *
+     * @param file location of the manifest
+     * @return the manifest
+     */
+    static FingerprintManifest load(Path file) {
+        FingerprintManifest manifest = new FingerprintManifest(file);
+        if (!StorageProvider.getInstance().isFileExists(file)) {
+            return manifest;
+        }
+        try (InputStream in = StorageProvider.getInstance().newInputStream(file);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length == 4) {
+                    manifest.entries.put(parts[0], new Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.warn("XMP Plugin: cannot read manifest " + file + ", all images are written", e);
+            manifest.entries.clear();
+        }
+        return manifest;
+    }
+
+    /**
+     * Check if the image was already written with the same fields and was not changed afterwards
+     *
+     * @param name file name of the image
+     * @param hash hash of the fields
+     * @param storedImage location of the image in the storage
+     * @return true, if the image can be skipped
+     */
+    boolean isUnchanged(String name, String hash, Path storedImage) {
+        Entry entry = entries.get(name);
+        if (entry == null || !entry.hash.equals(hash)) {
+            return false;
+        }
+        try {
+            return entry.size == StorageProvider.getInstance().getFileSize(storedImage)
+                    && entry.lastModified == StorageProvider.getInstance().getLastModifiedDate(storedImage);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Remember the fields of an image. The entry is updated by {@link #update()}, after the image was stored
+     *
+     * @param name file name of the image
+     * @param hash hash of the fields
+     * @param storedImage location of the image in the storage
+     */
+    void markPending(String name, String hash, Path storedImage) {
+        pending.put(name, hash);
+        storedImages.put(name, storedImage);
+    }
+
+    /**
+     * Read the file state of all pending images and update their entries
+     *
+     * @throws IOException if the file state cannot be read
+     */
+    void update() throws IOException {
+        for (Map.Entry<String, String> image : pending.entrySet()) {
+            Path storedImage = storedImages.get(image.getKey());
+            entries.put(image.getKey(), new Entry(image.getValue(), StorageProvider.getInstance().getFileSize(storedImage),
+                    StorageProvider.getInstance().getLastModifiedDate(storedImage)));
+        }
+        pending.clear();
+        storedImages.clear();
+    }
+
+    /**
+     * Write the manifest
+     *
+     * @throws IOException
+     */
+    void save() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            content.append(entry.getKey())
+                    .append('\t')
+                    .append(entry.getValue().hash)
+                    .append('\t')
+                    .append(entry.getValue().size)
+                    .append('\t')
+                    .append(entry.getValue().lastModified)
+                    .append('\n');
+        }
+        byte[] data = content.toString().getBytes(StandardCharsets.UTF_8);
+        StorageProvider.getInstance().uploadFile(new ByteArrayInputStream(data), file, (long) data.length);
+    }
+
+    /**
+     * Compute the hash of the fields that get written into an image
+     *
+     * @param fields the xmp fields and their values
+     * @return hex encoded hash
+     */
+    static String hash(List<Map.Entry<String, String>> fields) {
+        return hash(fields, null);
+    }
+
+    /**
+     * Compute the hash of the fields that get written into an image and the configuration they are written with
+     *
+     * @param fields the xmp fields and their values
+     * @param version version of the configuration, see {@link Config#getVersion()}, can be null
+     * @return hex encoded hash
+     */
+    static String hash(List<Map.Entry<String, String>> fields, String version) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (version != null) {
+                digest.update(version.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            for (Map.Entry<String, String> field : fields) {
+                digest.update(field.getKey().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                if (field.getValue() != null) {
+                    digest.update(field.getValue().getBytes(StandardCharsets.UTF_8));
+                }
+                digest.update((byte) 0);
+            }
+            StringBuilder hex = new StringBuilder();
+            // the first 128 bits are sufficient to detect changes
+            byte[] hash = digest.digest();
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        private final String hash;
+        private final long size;
+        private final long lastModified;
+
+        private Entry(String hash, long size, long lastModified) {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+}
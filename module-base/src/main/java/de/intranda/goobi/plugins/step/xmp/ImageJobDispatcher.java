@@ -0,0 +1,368 @@
+package de.intranda.goobi.plugins.step.xmp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import de.intranda.goobi.plugins.step.xmp.metrics.Phase;
+import de.intranda.goobi.plugins.step.xmp.metrics.RunMetrics;
+import de.intranda.goobi.plugins.step.xmp.writer.ExiftoolBatchWriter;
+import de.intranda.goobi.plugins.step.xmp.writer.ExiftoolGroupWriter;
+import de.intranda.goobi.plugins.step.xmp.writer.ExiftoolScriptWriter;
+import de.intranda.goobi.plugins.step.xmp.writer.ExiftoolStayOpenWriter;
+import de.intranda.goobi.plugins.step.xmp.writer.IXmpWriter;
+import de.intranda.goobi.plugins.step.xmp.writer.NativeXmpWriter;
+import de.intranda.goobi.plugins.step.xmp.writer.XmpJob;
+import de.intranda.goobi.plugins.step.xmp.writer.XmpSidecarWriter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Writes the images of a single folder. Each job is routed to the native writer, if it is configured and can handle the image, otherwise to the
+ * exiftool writer of the configured execution mode. The jobs are written one after another, by a bounded pool of threads or collected into
+ * batches, depending on the configuration. In S3 mode each image is downloaded, written and uploaded as a single job, so network transfer and
+ * writing overlap and only the images in progress are stored locally. In sidecar mode all jobs are written into sidecar files, the images are neither
+ * changed nor transferred, only the sidecars are downloaded and uploaded in S3 mode.
+ */
+@Log4j2
+class ImageJobDispatcher {
+
+    private final ExecutorService executor;
+
+    private final IXmpWriter nativeWriter;
+
+    private final IXmpWriter exiftoolWriter;
+
+    // writes all jobs in sidecar mode, null otherwise
+    private final IXmpWriter sidecarWriter;
+
+    private final Map<Path, Future<String>> results = new LinkedHashMap<>();
+
+    // jobs collected for writers that write several images with a single call
+    private final Map<IXmpWriter, List<XmpJob>> pendingJobs = new LinkedHashMap<>();
+
+    // downloads and uploads the images in S3 mode, null otherwise
+    private final S3Transfer transfer;
+
+    private final RunMetrics metrics;
+
+    // called for each image that was written completely, can be null
+    private Consumer<Path> writtenListener;
+
+    private int submitted;
+
+    /**
+     * @param config current configuration
+     * @param transfer if set, each image is downloaded, written and uploaded again as a single job. The number of concurrent jobs is limited by
+     *            s3InFlight instead of threads
+     * @param groupIdenticalFields if true, images with the same fields are written by a single call of the command in script mode
+     * @param sidecar if true, the fields are written into sidecar files instead of the images
+     * @param metrics metrics of the current run
+     */
+    ImageJobDispatcher(Config config, S3Transfer transfer, boolean groupIdenticalFields, boolean sidecar, RunMetrics metrics) {
+        this.transfer = transfer;
+        this.metrics = metrics;
+        executor = createExecutor(transfer == null ? config.getThreads() : config.getS3InFlight());
+        if (groupIdenticalFields && transfer == null && "script".equals(config.getExecutionMode())) {
+            exiftoolWriter = new ExiftoolGroupWriter(config.getCommand(), config.getParameter(), config.getGroupSize());
+        } else {
+            exiftoolWriter = createExiftoolWriter(config);
+        }
+        // fields unknown to the packet creator and parameters that change the properties are written into the sidecar by exiftool
+        sidecarWriter = sidecar ? new XmpSidecarWriter(config.getParameter(), exiftoolWriter) : null;
+        // jpeg files with large existing packets are written by exiftool
+        nativeWriter = "native".equals(config.getWriter()) ? new NativeXmpWriter(config.getParameter(), exiftoolWriter) : null;
+    }
+
+    /**
+     * Create the writer for the configured execution mode
+     *
+     * @param config current configuration
+     * @return the writer
+     */
+    static IXmpWriter createExiftoolWriter(Config config) {
+        switch (config.getExecutionMode()) {
+            case "stayOpen":
+                return new ExiftoolStayOpenWriter(config.getCommand(), config.getParameter(), config.getPoolSize(), config.getIdleTimeout());
+            case "batch":
+                return new ExiftoolBatchWriter(config.getCommand(), config.getParameter(), config.getBatchSize());
+            case "script":
+            default:
+                return new ExiftoolScriptWriter(config.getCommand(), config.getParameter());
+        }
+    }
+
+    /**
+     * @param writtenListener called for each image that was written (and uploaded in S3 mode), possibly by several threads at the same time
+     */
+    void setWrittenListener(Consumer<Path> writtenListener) {
+        this.writtenListener = writtenListener;
+    }
+
+    /**
+     * Write the metadata into a single image. If the images are written sequentially, the writer is called immediately, otherwise the job is queued
+     *
+     * @param job the job
+     * @return null, if the image was written or queued, otherwise the error message
+     */
+    String submit(XmpJob job) {
+        submitted++;
+        if (transfer != null) {
+            return submitTransfer(job);
+        }
+        IXmpWriter writer = selectWriter(job);
+        if (writer.getBatchSize() > 1) {
+            List<XmpJob> pending = pendingJobs.computeIfAbsent(writer, w -> new ArrayList<>());
+            pending.add(job);
+            if (pending.size() >= writer.getBatchSize()) {
+                submitJobs(writer, pending);
+                pendingJobs.remove(writer);
+            }
+            return null;
+        } else if (executor == null) {
+            try {
+                return runWriter(writer, Collections.singletonList(job)).get(job.getImage());
+            } catch (CompletionException e) {
+                return e.getCause().getMessage();
+            }
+        } else {
+            submitJobs(writer, Collections.singletonList(job));
+            return null;
+        }
+    }
+
+    /**
+     * Wait until all queued images are written. The errors are collected in the order of the images
+     *
+     * @return list of errors, empty if all images were written
+     */
+    List<String> finish() {
+        for (Map.Entry<IXmpWriter, List<XmpJob>> entry : pendingJobs.entrySet()) {
+            submitJobs(entry.getKey(), entry.getValue());
+        }
+        pendingJobs.clear();
+        if (executor != null) {
+            executor.shutdown();
+        }
+        List<String> errors = new ArrayList<>();
+        for (Map.Entry<Path, Future<String>> entry : results.entrySet()) {
+            String error;
+            try {
+                error = entry.getValue().get();
+            } catch (ExecutionException e) {
+                error = e.getCause().getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = "interrupted";
+            }
+            if (error != null) {
+                errors.add(entry.getKey().getFileName() + ": " + error);
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Stop writing, queued images are not written anymore
+     */
+    void cancel() {
+        pendingJobs.clear();
+        for (Future<String> future : results.values()) {
+            future.cancel(false);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    int size() {
+        return submitted;
+    }
+
+    private IXmpWriter selectWriter(XmpJob job) {
+        if (sidecarWriter != null) {
+            return sidecarWriter;
+        }
+        return nativeWriter != null && nativeWriter.canWrite(job) ? nativeWriter : exiftoolWriter;
+    }
+
+    /**
+     * Download, write and upload a single image
+     *
+     * @param job the job
+     * @return null, if the image was written or queued, otherwise the error message
+     */
+    private String submitTransfer(XmpJob job) {
+        if (executor == null) {
+            try {
+                return transferImage(job);
+            } catch (CompletionException e) {
+                return e.getCause().getMessage();
+            }
+        }
+        results.put(job.getImage(), CompletableFuture.supplyAsync(() -> transferImage(job), executor));
+        return null;
+    }
+
+    private String transferImage(XmpJob job) {
+        if (sidecarWriter != null) {
+            return transferSidecar(job);
+        }
+        Path image = job.getImage();
+        try {
+            transfer.download(image);
+            // the writer can be selected only after the image was downloaded
+            String error = runWriter(selectWriter(job), Collections.singletonList(job)).get(image);
+            if (error == null) {
+                transfer.upload(image);
+                notifyWritten(image);
+            }
+            return error;
+        } catch (IOException e) {
+            log.error(e);
+            throw new CompletionException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } finally {
+            transfer.release(image);
+        }
+    }
+
+    /**
+     * Write the sidecar of a single image. An existing sidecar is downloaded first, so its other properties are kept. The image is not downloaded
+     *
+     * @param job the job
+     * @return null, if the sidecar was written, otherwise the error message
+     */
+    private String transferSidecar(XmpJob job) {
+        Path sidecar = XmpSidecarWriter.getSidecar(job);
+        try {
+            transfer.downloadIfExists(sidecar);
+            String error = runWriter(sidecarWriter, Collections.singletonList(job)).get(job.getImage());
+            if (error == null) {
+                transfer.upload(sidecar);
+                notifyWritten(job.getImage());
+            }
+            return error;
+        } catch (IOException e) {
+            log.error(e);
+            throw new CompletionException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } finally {
+            transfer.release(sidecar);
+        }
+    }
+
+    private void submitJobs(IXmpWriter writer, List<XmpJob> jobs) {
+        CompletableFuture<Map<Path, String>> jobResult;
+        if (executor == null) {
+            try {
+                jobResult = CompletableFuture.completedFuture(runWriter(writer, jobs));
+            } catch (CompletionException e) {
+                jobResult = CompletableFuture.failedFuture(e.getCause());
+            }
+        } else {
+            jobResult = CompletableFuture.supplyAsync(() -> runWriter(writer, jobs), executor);
+        }
+        for (XmpJob job : jobs) {
+            results.put(job.getImage(), jobResult.thenApply(errors -> errors.get(job.getImage())));
+        }
+    }
+
+    private Map<Path, String> runWriter(IXmpWriter writer, List<XmpJob> jobs) {
+        IoGovernor.Permit permit = acquireStorage(writer, jobs);
+        long start = System.nanoTime();
+        Map<Path, String> errors = null;
+        try {
+            errors = writer.write(jobs);
+            if (transfer == null) {
+                // in S3 mode the image is finished after the upload
+                for (XmpJob job : jobs) {
+                    if (!errors.containsKey(job.getImage())) {
+                        notifyWritten(job.getImage());
+                    }
+                }
+            }
+            return errors;
+        } catch (IOException e) {
+            log.error(e);
+            throw new CompletionException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } finally {
+            // the duration of a batch is shared by its images
+            long nanos = (System.nanoTime() - start) / jobs.size();
+            for (XmpJob job : jobs) {
+                metrics.addWrite(nanos, errors == null || errors.containsKey(job.getImage()));
+            }
+            metrics.addTime(Phase.WRITE, start);
+            permit.close();
+        }
+    }
+
+    /**
+     * Wait until the storage of the images can be written, see {@link IoGovernor}
+     *
+     * @param writer the writer of the jobs
+     * @param jobs jobs written by a single call of the writer
+     * @return the permit, to be closed after the write
+     */
+    private IoGovernor.Permit acquireStorage(IXmpWriter writer, List<XmpJob> jobs) {
+        long bytes = 0;
+        for (XmpJob job : jobs) {
+            try {
+                bytes += writer.getWrittenBytes(job);
+            } catch (IOException e) {
+                // the writer reports the missing image
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            return IoGovernor.getInstance().acquire(jobs.get(0).getImage(), metrics, bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } finally {
+            metrics.addTime(Phase.IO_WAIT, start);
+        }
+    }
+
+    private void notifyWritten(Path image) {
+        if (writtenListener != null) {
+            writtenListener.accept(image);
+        }
+    }
+
+    /**
+     * Create a bounded executor to write the images concurrently. If only a single thread is configured, null is returned and the images are written
+     * one after another
+     *
+     * @param threads number of threads
+     * @return the executor or null
+     */
+    private ExecutorService createExecutor(int threads) {
+        if (threads <= 1) {
+            return null;
+        }
+        // the queue is bounded, if it is full the calling thread writes the image itself
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threads * 2),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+}
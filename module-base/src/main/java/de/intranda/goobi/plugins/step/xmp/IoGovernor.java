@@ -0,0 +1,344 @@
+package de.intranda.goobi.plugins.step.xmp;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Limits the image writes of all steps in the JVM, so that concurrent steps do not saturate the storage. For each storage (file store) the number of
+ * concurrent writes and the number of bytes written per second are limited. Waiting writes are served run by run in turn, so a run with many threads
+ * cannot starve the other runs. Registered as MBean de.intranda.goobi.plugins.step.xmp:type=IoGovernor
+ */
+@Log4j2
+public class IoGovernor implements IoGovernorMBean {
+
+    private static final String OBJECT_NAME = "de.intranda.goobi.plugins.step.xmp:type=IoGovernor";
+
+    private static final IoGovernor INSTANCE = new IoGovernor();
+
+    // length of the throughput window in seconds
+    private static final int WINDOW = 60;
+
+    // the storage of each folder is cached, the cache is cleared when it gets too large
+    private static final int MAX_CACHED_FOLDERS = 10000;
+
+    private volatile int maxConcurrentWrites;
+
+    private volatile long maxBytesPerSecond;
+
+    private final Map<String, Storage> storages = new ConcurrentHashMap<>();
+
+    private final Map<Path, String> storageNames = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // the plugin may have been loaded again by a new class loader
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(INSTANCE, name);
+        } catch (JMException | SecurityException e) {
+            log.warn("XMP Plugin: cannot register I/O governor MBean", e);
+        }
+    }
+
+    private IoGovernor() {
+    }
+
+    public static IoGovernor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set the limits of all steps, called when the configuration file is read
+     *
+     * @param maxConcurrentWrites maximum number of concurrent writes per storage, 0 for no limit
+     * @param maxMbPerSecond maximum number of MB written per second per storage, 0 for no limit
+     */
+    void configure(int maxConcurrentWrites, long maxMbPerSecond) {
+        int writes = Math.max(0, maxConcurrentWrites);
+        long bytesPerSecond = Math.max(0, maxMbPerSecond) * 1024 * 1024;
+        if (this.maxConcurrentWrites == writes && this.maxBytesPerSecond == bytesPerSecond) {
+            return;
+        }
+        this.maxConcurrentWrites = writes;
+        this.maxBytesPerSecond = bytesPerSecond;
+        // waiting writes may get a slot now
+        for (Storage storage : storages.values()) {
+            storage.grant();
+        }
+    }
+
+    /**
+     * Wait until the image can be written. The caller must close the permit after the write
+     *
+     * @param image the image, used to find its storage
+     * @param run the run the write belongs to, waiting writes of different runs are served in turn
+     * @param bytes estimated number of bytes that are written
+     * @return the permit
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    Permit acquire(Path image, Object run, long bytes) throws InterruptedException {
+        Storage storage = storages.computeIfAbsent(getStorageName(image), Storage::new);
+        storage.acquire(run);
+        try {
+            long limit = maxBytesPerSecond;
+            if (limit > 0) {
+                long delay = storage.reserve(bytes, limit);
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+            }
+        } catch (InterruptedException e) {
+            storage.release();
+            throw e;
+        }
+        return new Permit(storage, bytes);
+    }
+
+    private String getStorageName(Path image) {
+        Path folder = image.toAbsolutePath().getParent();
+        if (folder == null) {
+            return "";
+        }
+        if (storageNames.size() > MAX_CACHED_FOLDERS) {
+            storageNames.clear();
+        }
+        return storageNames.computeIfAbsent(folder, f -> {
+            try {
+                FileStore store = Files.getFileStore(f);
+                return store.toString();
+            } catch (IOException e) {
+                // the folder does not exist yet
+                return String.valueOf(f.getRoot());
+            }
+        });
+    }
+
+    @Override
+    public int getMaxConcurrentWrites() {
+        return maxConcurrentWrites;
+    }
+
+    @Override
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Storage storage : storages.values()) {
+            depth += storage.getWaiting();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getActiveWrites() {
+        int active = 0;
+        for (Storage storage : storages.values()) {
+            active += storage.getActive();
+        }
+        return active;
+    }
+
+    @Override
+    public long getBytesWritten() {
+        long bytes = 0;
+        for (Storage storage : storages.values()) {
+            bytes += storage.getBytesWritten();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        long bytes = 0;
+        for (Storage storage : storages.values()) {
+            bytes += storage.getBytesPerSecond();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String[] getStorages() {
+        List<String> result = new ArrayList<>();
+        for (Storage storage : storages.values()) {
+            result.add(storage.name + ": " + storage.getActive() + " active, " + storage.getWaiting() + " waiting, "
+                    + storage.getBytesPerSecond() / 1024 + " KB/s");
+        }
+        return result.toArray(new String[0]);
+    }
+
+    /**
+     * A write slot, closing it releases the slot and records the written bytes
+     */
+    static final class Permit implements AutoCloseable {
+        private final Storage storage;
+        private final long bytes;
+        private boolean closed;
+
+        private Permit(Storage storage, long bytes) {
+            this.storage = storage;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                storage.record(bytes);
+                storage.release();
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private boolean granted;
+    }
+
+    /**
+     * Slots, byte budget and throughput of a single storage. All fields are guarded by the instance
+     */
+    private final class Storage {
+        private final String name;
+        private int active;
+        private int waitingCount;
+        // waiting writes of each run, the first run gets the next slot and is moved to the end afterwards
+        private final Map<Object, ArrayDeque<Waiter>> waiting = new LinkedHashMap<>();
+        // time until which the byte budget is used by earlier writes
+        private long nextFree;
+        private long bytesWritten;
+        // bytes written in each second of the window
+        private final long[] bytesPerSecond = new long[WINDOW];
+        private final long[] seconds = new long[WINDOW];
+
+        private Storage(String name) {
+            this.name = name;
+        }
+
+        private synchronized void acquire(Object run) throws InterruptedException {
+            if (waiting.isEmpty() && hasFreeSlot()) {
+                active++;
+                return;
+            }
+            Waiter waiter = new Waiter();
+            waiting.computeIfAbsent(run, r -> new ArrayDeque<>()).add(waiter);
+            waitingCount++;
+            try {
+                while (!waiter.granted) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if (waiter.granted) {
+                    // the slot was granted at the same time, pass it on
+                    release();
+                } else {
+                    ArrayDeque<Waiter> queue = waiting.get(run);
+                    queue.remove(waiter);
+                    if (queue.isEmpty()) {
+                        waiting.remove(run);
+                    }
+                    waitingCount--;
+                }
+                throw e;
+            }
+        }
+
+        private synchronized void release() {
+            active--;
+            grant();
+        }
+
+        private synchronized void grant() {
+            boolean granted = false;
+            while (!waiting.isEmpty() && hasFreeSlot()) {
+                Iterator<Map.Entry<Object, ArrayDeque<Waiter>>> runs = waiting.entrySet().iterator();
+                Map.Entry<Object, ArrayDeque<Waiter>> next = runs.next();
+                runs.remove();
+                Waiter waiter = next.getValue().poll();
+                if (!next.getValue().isEmpty()) {
+                    waiting.put(next.getKey(), next.getValue());
+                }
+                waiter.granted = true;
+                waitingCount--;
+                active++;
+                granted = true;
+            }
+            if (granted) {
+                notifyAll();
+            }
+        }
+
+        private boolean hasFreeSlot() {
+            int max = maxConcurrentWrites;
+            return max <= 0 || active < max;
+        }
+
+        /**
+         * Reserve the bytes in the budget of the storage
+         *
+         * @return time in nanoseconds to wait before the write can start
+         */
+        private synchronized long reserve(long bytes, long limit) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFree);
+            nextFree = start + (long) (bytes * 1_000_000_000d / limit);
+            return start - now;
+        }
+
+        private synchronized void record(long bytes) {
+            bytesWritten += bytes;
+            long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+            int slot = (int) (second % WINDOW);
+            if (seconds[slot] != second) {
+                seconds[slot] = second;
+                bytesPerSecond[slot] = 0;
+            }
+            bytesPerSecond[slot] += bytes;
+        }
+
+        private synchronized long getBytesPerSecond() {
+            long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+            long bytes = 0;
+            for (int i = 0; i < WINDOW; i++) {
+                if (second - seconds[i] < WINDOW) {
+                    bytes += bytesPerSecond[i];
+                }
+            }
+            return bytes / WINDOW;
+        }
+
+        private synchronized int getActive() {
+            return active;
+        }
+
+        private synchronized int getWaiting() {
+            return waitingCount;
+        }
+
+        private synchronized long getBytesWritten() {
+            return bytesWritten;
+        }
+    }
+
+}
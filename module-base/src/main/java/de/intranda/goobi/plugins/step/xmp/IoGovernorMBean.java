@@ -0,0 +1,37 @@
+package de.intranda.goobi.plugins.step.xmp;
+
+/**
+ * Management interface of the I/O governor. The values are the sum over all storages, unless noted otherwise
+ */
+public interface IoGovernorMBean {
+
+    /**
+     * @return maximum number of concurrent writes per storage, 0 if unlimited
+     */
+    public int getMaxConcurrentWrites();
+
+    /**
+     * @return maximum number of bytes written per second per storage, 0 if unlimited
+     */
+    public long getMaxBytesPerSecond();
+
+    /**
+     * @return number of writes waiting for a free slot
+     */
+    public int getQueueDepth();
+
+    public int getActiveWrites();
+
+    public long getBytesWritten();
+
+    /**
+     * @return average number of bytes written per second during the last minute
+     */
+    public long getBytesPerSecond();
+
+    /**
+     * @return name, active and waiting writes and throughput of each storage
+     */
+    public String[] getStorages();
+
+}
@@ -0,0 +1,78 @@
+package de.intranda.goobi.plugins.step.xmp;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.goobi.production.enums.PluginReturnValue;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Coordinates the runs of all steps in the JVM. An identical request for a process that is already running does not start the work again, it waits
+ * for the running request and gets its result. Different requests for the same image folder are serialized by a lock, so they never write the same
+ * images at the same time. The locks are striped, folders with the same stripe wait for each other as well.
+ */
+@Log4j2
+final class RunCoordinator {
+
+    // number of folder locks, must be a power of two
+    private static final int STRIPES = 256;
+
+    private static final Lock[] folderLocks = new Lock[STRIPES];
+
+    // result of each running request
+    private static final Map<String, CompletableFuture<PluginReturnValue>> running = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            folderLocks[i] = new ReentrantLock(true);
+        }
+    }
+
+    private RunCoordinator() {
+    }
+
+    /**
+     * Execute the request, unless an identical request is already running. In this case wait for its result
+     *
+     * @param key identifies the request, e.g. process and configuration
+     * @param work writes the images
+     * @param attached called before waiting for the running request
+     * @return the result of the request
+     */
+    static PluginReturnValue run(String key, Supplier<PluginReturnValue> work, Runnable attached) {
+        CompletableFuture<PluginReturnValue> result = new CompletableFuture<>();
+        CompletableFuture<PluginReturnValue> existing = running.putIfAbsent(key, result);
+        if (existing != null) {
+            log.info("XMP Plugin: request " + key + " is already running, wait for its result");
+            attached.run();
+            return existing.join();
+        }
+        PluginReturnValue value = PluginReturnValue.ERROR;
+        try {
+            value = work.get();
+            return value;
+        } finally {
+            running.remove(key, result);
+            // waiting requests get an error, if the work failed with an exception
+            result.complete(value);
+        }
+    }
+
+    /**
+     * Get the lock of an image folder
+     *
+     * @param processId id of the process
+     * @param folder the image folder
+     * @return the lock, shared with other folders of the same stripe
+     */
+    static Lock getFolderLock(int processId, String folder) {
+        return folderLocks[Objects.hash(processId, folder) & (STRIPES - 1)];
+    }
+
+}
@@ -0,0 +1,200 @@
+package de.intranda.goobi.plugins.step.xmp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import de.intranda.goobi.plugins.step.xmp.metrics.Phase;
+import de.intranda.goobi.plugins.step.xmp.metrics.RunMetrics;
+import de.sub.goobi.helper.StorageProvider;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Transfers single images of a folder between S3 and the temporary folder. The downloaded images must not exceed the local disk budget, if it is
+ * reached, further downloads wait until earlier images are uploaded and deleted. A checksum is computed during the download, images that were not
+ * changed by the writer are not uploaded again.
+ */
+@Log4j2
+class S3Transfer {
+
+    private final Path remoteFolder;
+
+    private final Path tempFolder;
+
+    // disk budget in KB
+    private final int budget;
+
+    private final Semaphore diskBudget;
+
+    // reserved part of the budget of each downloaded image
+    private final Map<Path, Integer> reserved = new ConcurrentHashMap<>();
+
+    // size and checksum of each downloaded image
+    private final Map<Path, long[]> downloaded = new ConcurrentHashMap<>();
+
+    private final Semaphore uploads;
+
+    private final RunMetrics metrics;
+
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicInteger downloadedImages = new AtomicInteger();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicInteger uploadedImages = new AtomicInteger();
+    private final AtomicInteger unchangedImages = new AtomicInteger();
+
+    /**
+     * @param remoteFolder folder of the images in S3
+     * @param tempFolder local folder for the images
+     * @param diskBudget maximum size in MB of all images stored locally at the same time
+     * @param maxUploads maximum number of concurrent uploads
+     * @param metrics metrics of the current run
+     */
+    S3Transfer(Path remoteFolder, Path tempFolder, long diskBudget, int maxUploads, RunMetrics metrics) {
+        this.metrics = metrics;
+        this.remoteFolder = remoteFolder;
+        this.tempFolder = tempFolder;
+        budget = (int) Math.min(Integer.MAX_VALUE, Math.max(1, diskBudget) * 1024);
+        this.diskBudget = new Semaphore(budget, true);
+        uploads = new Semaphore(Math.max(1, maxUploads), true);
+    }
+
+    /**
+     * @param image file name of the image
+     * @return the local path of the image
+     */
+    Path getLocalImage(String image) {
+        return tempFolder.resolve(image);
+    }
+
+    /**
+     * @param localImage local path of the image
+     * @return location of the image in S3
+     */
+    Path getRemoteImage(Path localImage) {
+        return remoteFolder.resolve(localImage.getFileName().toString());
+    }
+
+    /**
+     * Download the image into the temporary folder. Waits until the image fits into the disk budget. An image larger than the budget uses the
+     * complete budget
+     *
+     * @param localImage local path of the image
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void download(Path localImage) throws IOException, InterruptedException {
+        Path remoteImage = getRemoteImage(localImage);
+        long size = StorageProvider.getInstance().getFileSize(remoteImage);
+        int permits = (int) Math.min(budget, Math.max(1, size / 1024));
+        diskBudget.acquire(permits);
+        reserved.put(localImage, permits);
+        log.debug("XMP Plugin: download " + remoteImage);
+        long start = System.nanoTime();
+        try (CheckedInputStream in = new CheckedInputStream(StorageProvider.getInstance().newInputStream(remoteImage), new CRC32())) {
+            long bytes = Files.copy(in, localImage, StandardCopyOption.REPLACE_EXISTING);
+            downloaded.put(localImage, new long[] { bytes, in.getChecksum().getValue() });
+            downloadedBytes.addAndGet(bytes);
+            downloadedImages.incrementAndGet();
+            metrics.addDownloaded(bytes);
+        } finally {
+            metrics.addTime(Phase.DOWNLOAD, start);
+        }
+    }
+
+    /**
+     * Download the file into the temporary folder, if it exists in S3
+     *
+     * @param localFile local path of the file
+     * @return true, if the file was downloaded
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    boolean downloadIfExists(Path localFile) throws IOException, InterruptedException {
+        if (!StorageProvider.getInstance().isFileExists(getRemoteImage(localFile))) {
+            return false;
+        }
+        download(localFile);
+        return true;
+    }
+
+    /**
+     * Upload the image from the temporary folder into S3, if it was changed by the writer
+     *
+     * @param localImage local path of the image
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void upload(Path localImage) throws IOException, InterruptedException {
+        Path remoteImage = getRemoteImage(localImage);
+        long size = Files.size(localImage);
+        if (!isChanged(localImage, size)) {
+            log.debug("XMP Plugin: " + remoteImage + " is unchanged, skip upload");
+            unchangedImages.incrementAndGet();
+            return;
+        }
+        uploads.acquire();
+        long start = System.nanoTime();
+        try (InputStream in = Files.newInputStream(localImage)) {
+            log.debug("XMP Plugin: upload " + remoteImage);
+            StorageProvider.getInstance().uploadFile(in, remoteImage, size);
+            uploadedBytes.addAndGet(size);
+            uploadedImages.incrementAndGet();
+            metrics.addUploaded(size);
+        } finally {
+            metrics.addTime(Phase.UPLOAD, start);
+            uploads.release();
+        }
+    }
+
+    private boolean isChanged(Path localImage, long size) throws IOException {
+        long[] original = downloaded.get(localImage);
+        if (original == null || original[0] != size) {
+            return true;
+        }
+        CRC32 checksum = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(localImage)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checksum.update(buffer, 0, read);
+            }
+        }
+        return checksum.getValue() != original[1];
+    }
+
+    /**
+     * @return summary of the transferred data
+     */
+    String getSummary() {
+        return "downloaded " + downloadedImages.get() + " images (" + downloadedBytes.get() + " bytes), uploaded " + uploadedImages.get()
+                + " images (" + uploadedBytes.get() + " bytes), " + unchangedImages.get() + " unchanged images were not uploaded";
+    }
+
+    /**
+     * Delete the local copy of the image and release its part of the disk budget
+     *
+     * @param localImage local path of the image
+     */
+    void release(Path localImage) {
+        try {
+            Files.deleteIfExists(localImage);
+        } catch (IOException e) {
+            log.error("XMP Plugin: cannot delete temporary file " + localImage, e);
+        }
+        downloaded.remove(localImage);
+        Integer permits = reserved.remove(localImage);
+        if (permits != null) {
+            diskBudget.release(permits);
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+package de.intranda.goobi.plugins.step.xmp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+import org.goobi.persistence.managers.ProcessManager;
+import org.goobi.production.enums.PluginReturnValue;
+
+import de.intranda.goobi.plugins.step.xmp.metrics.XmpMetrics;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Writes the XMP headers of many processes in a single JVM, e.g. after a field was added to the configuration. Each process is written like a run
+ * of the configured step, but the step itself is not changed. All processes share the configuration cache, the exiftool pool and the metrics. The
+ * number of processes written at the same time is limited, the result of each process is collected in a report.
+ *
+ * <pre>
+ * java ... de.intranda.goobi.plugins.step.xmp.XmpBulkRunner --step "Write XMP headers" --threads 4 --report /tmp/xmp-report.txt --ids 1,2,3
+ * java ... de.intranda.goobi.plugins.step.xmp.XmpBulkRunner --step "Write XMP headers" --ids-file ids.txt
+ * java ... de.intranda.goobi.plugins.step.xmp.XmpBulkRunner --step "Write XMP headers" --filter "prozesse.ProjekteID = 3"
+ * </pre>
+ */
+@Log4j2
+public class XmpBulkRunner {
+
+    private final String stepTitle;
+
+    private final int threads;
+
+    // result of each process, ordered by id
+    private final Map<Integer, String> results = new TreeMap<>();
+
+    private final AtomicInteger finished = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    // number of processes with a result, used for the progress
+    private final AtomicInteger done = new AtomicInteger();
+
+    // number of processes of the current run
+    private volatile int total;
+
+    /**
+     * @param stepTitle title of the step, used to find the configuration block and the step of each process
+     * @param threads number of processes written at the same time
+     */
+    public XmpBulkRunner(String stepTitle, int threads) {
+        this.stepTitle = stepTitle;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Write all given processes
+     *
+     * @param processIds ids of the processes
+     * @return the report
+     * @throws InterruptedException if the runner was interrupted, the processes that were already started are finished first
+     */
+    public String run(List<Integer> processIds) throws InterruptedException {
+        long start = System.nanoTime();
+        XmpMetrics metrics = XmpMetrics.getInstance();
+        long[] before = { metrics.getImagesWritten(), metrics.getWriteFailures(), metrics.getImagesSkipped() };
+        log.info("XMP Plugin: bulk run of step '" + stepTitle + "' for " + processIds.size() + " processes with " + threads + " threads");
+        total = processIds.size();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // only a few processes are queued, the list can contain hundreds of thousands of ids
+        Semaphore queue = new Semaphore(threads * 2);
+        try {
+            for (Integer processId : processIds) {
+                queue.acquire();
+                executor.execute(() -> {
+                    try {
+                        writeProcess(processId);
+                    } finally {
+                        queue.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        String report = createReport(processIds.size(), System.nanoTime() - start, before);
+        log.info("XMP Plugin: bulk run finished, " + getSummary());
+        return report;
+    }
+
+    private void writeProcess(Integer processId) {
+        try {
+            Process process = ProcessManager.getProcessById(processId);
+            if (process == null) {
+                addResult(processId, "SKIPPED\tprocess not found", skipped);
+                return;
+            }
+            Step step = null;
+            for (Step s : process.getSchritte()) {
+                if (stepTitle.equals(s.getTitel())) {
+                    step = s;
+                    break;
+                }
+            }
+            if (step == null) {
+                addResult(processId, "SKIPPED\tstep '" + stepTitle + "' not found", skipped);
+                return;
+            }
+            XmpPlugin plugin = new XmpPlugin();
+            plugin.initialize(step, "");
+            long start = System.nanoTime();
+            PluginReturnValue result = plugin.runDirectly();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (result == PluginReturnValue.FINISH) {
+                addResult(processId, "FINISH\t" + millis + " ms", finished);
+            } else {
+                addResult(processId, "ERROR\t" + millis + " ms, see journal of the process", failed);
+            }
+        } catch (RuntimeException e) {
+            log.error("XMP Plugin: bulk run failed for process with ID " + processId, e);
+            addResult(processId, "ERROR\t" + e.getMessage(), failed);
+        }
+    }
+
+    private void addResult(Integer processId, String result, AtomicInteger counter) {
+        synchronized (results) {
+            results.put(processId, result);
+        }
+        counter.incrementAndGet();
+        // each count is reached by exactly one process
+        int count = done.incrementAndGet();
+        if (count % 100 == 0) {
+            log.info("XMP Plugin: bulk run, " + count + " of " + total + " processes done");
+        }
+    }
+
+    private String getSummary() {
+        return finished.get() + " finished, " + failed.get() + " failed, " + skipped.get() + " skipped";
+    }
+
+    /**
+     * @param before image counters of the JVM wide metrics before the run, the report contains the difference
+     */
+    private String createReport(int total, long nanos, long[] before) {
+        XmpMetrics metrics = XmpMetrics.getInstance();
+        StringBuilder report = new StringBuilder();
+        report.append("# step: ").append(stepTitle).append('\n');
+        report.append("# processes: ").append(total).append(", ").append(getSummary()).append('\n');
+        report.append("# duration: ").append(TimeUnit.NANOSECONDS.toSeconds(nanos)).append(" s\n");
+        report.append("# images written: ")
+                .append(metrics.getImagesWritten() - before[0])
+                .append(", failures: ")
+                .append(metrics.getWriteFailures() - before[1])
+                .append(", skipped: ")
+                .append(metrics.getImagesSkipped() - before[2])
+                .append('\n');
+        report.append("# write latency of the JVM: ").append(metrics.getWriteLatencyHistogram()).append('\n');
+        synchronized (results) {
+            for (Map.Entry<Integer, String> result : results.entrySet()) {
+                report.append(result.getKey()).append('\t').append(result.getValue()).append('\n');
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * Command line entry point, the Goobi configuration and database must be accessible
+     *
+     * @param args --step title, --ids id,id,... or --ids-file file or --filter sql condition for the process table, optional --threads n and
+     *            --report file
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        String stepTitle = options.get("--step");
+        List<Integer> ids = readIds(options);
+        if (StringUtils.isBlank(stepTitle) || ids == null) {
+            System.err.println("usage: XmpBulkRunner --step <title> (--ids <id,id,...> | --ids-file <file> | --filter <sql>) [--threads <n>] "
+                    + "[--report <file>]");
+            System.exit(1);
+            return;
+        }
+        int threads = Integer.parseInt(options.getOrDefault("--threads", "2"));
+        String report = new XmpBulkRunner(stepTitle, threads).run(ids);
+        if (options.containsKey("--report")) {
+            Files.write(Paths.get(options.get("--report")), report.getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.print(report);
+        }
+    }
+
+    private static List<Integer> readIds(Map<String, String> options) throws IOException {
+        List<String> values;
+        if (options.containsKey("--ids")) {
+            values = Arrays.asList(options.get("--ids").split(","));
+        } else if (options.containsKey("--ids-file")) {
+            Path file = Paths.get(options.get("--ids-file"));
+            values = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } else if (options.containsKey("--filter")) {
+            return ProcessManager.getIdsForFilter(options.get("--filter"));
+        } else {
+            return null;
+        }
+        List<Integer> ids = new ArrayList<>();
+        for (String value : values) {
+            if (StringUtils.isNotBlank(value)) {
+                ids.add(Integer.valueOf(value.trim()));
+            }
+        }
+        return ids;
+    }
+
+}
@@ -1,49 +1,48 @@
 package de.intranda.goobi.plugins.step.xmp;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Lock;
 
-import org.apache.commons.configuration.HierarchicalConfiguration;
-import org.apache.commons.configuration.SubnodeConfiguration;
-import org.apache.commons.configuration.XMLConfiguration;
-import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
-import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
-import org.apache.commons.lang.StringUtils;
-import org.goobi.beans.GoobiProperty;
 import org.goobi.beans.Process;
-import org.goobi.beans.Processproperty;
 import org.goobi.beans.Step;
 
+import org.goobi.persistence.managers.StepManager;
 import org.goobi.production.enums.LogType;
 import org.goobi.production.enums.PluginGuiType;
 import org.goobi.production.enums.PluginReturnValue;
 import org.goobi.production.enums.PluginType;
 import org.goobi.production.enums.StepReturnValue;
+import org.goobi.production.enums.StepStatus;
 import org.goobi.production.plugin.interfaces.IStepPluginVersion2;
 
-import de.intranda.goobi.plugins.step.xmp.util.DocstructField;
-import de.intranda.goobi.plugins.step.xmp.util.FilenameField;
-import de.intranda.goobi.plugins.step.xmp.util.IMetadataField;
+import de.intranda.goobi.plugins.step.xmp.evaluation.FieldEvaluationPlan;
+import de.intranda.goobi.plugins.step.xmp.evaluation.FieldValueResolver;
+import de.intranda.goobi.plugins.step.xmp.evaluation.MetsStreamReader;
+import de.intranda.goobi.plugins.step.xmp.metrics.Phase;
+import de.intranda.goobi.plugins.step.xmp.metrics.RunMetrics;
 import de.intranda.goobi.plugins.step.xmp.util.ImageMetadataField;
-import de.intranda.goobi.plugins.step.xmp.util.MetadataField;
-import de.intranda.goobi.plugins.step.xmp.util.ProcesspropertyField;
-import de.intranda.goobi.plugins.step.xmp.util.StaticText;
-import de.intranda.goobi.plugins.step.xmp.util.TemplatepropertyField;
-import de.intranda.goobi.plugins.step.xmp.util.VariableField;
-import de.intranda.goobi.plugins.step.xmp.util.WorkpiecepropertyField;
-import de.sub.goobi.config.ConfigPlugins;
+import de.intranda.goobi.plugins.step.xmp.writer.XmpJob;
+import de.intranda.goobi.plugins.step.xmp.writer.XmpSidecarWriter;
 import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.CloseStepHelper;
 import de.sub.goobi.helper.Helper;
 import de.sub.goobi.helper.NIOFileUtils;
-import de.sub.goobi.helper.ShellScript;
 import de.sub.goobi.helper.StorageProvider;
-import de.sub.goobi.helper.VariableReplacer;
 import de.sub.goobi.helper.exceptions.DAOException;
 import de.sub.goobi.helper.exceptions.SwapException;
 import lombok.Getter;
@@ -51,12 +50,7 @@ import lombok.extern.log4j.Log4j2;
 import net.xeoh.plugins.base.annotations.PluginImplementation;
 import ugh.dl.DigitalDocument;
 import ugh.dl.DocStruct;
-import ugh.dl.Fileformat;
-import ugh.dl.Metadata;
-import ugh.dl.MetadataType;
-import ugh.dl.Person;
 import ugh.dl.Prefs;
-import ugh.dl.Reference;
 import ugh.exceptions.UGHException;
 
 @Log4j2
@@ -90,6 +84,19 @@ public class XmpPlugin implements IStepPluginVersion2 {
 
     private Prefs prefs;
 
+    private FieldValueResolver resolver;
+
+    // compiled field configuration of the current run
+    private FieldEvaluationPlan plan;
+
+    private FieldEvaluationPlan defaultPlan;
+
+    // metrics of the current run
+    private RunMetrics metrics;
+
+    // page values of the default configuration, only the filename differs between the images
+    private String[] defaultPageValues;
+
     @Override
     public void initialize(Step step, String returnPath) {
 
@@ -98,38 +105,11 @@ public class XmpPlugin implements IStepPluginVersion2 {
 
         String projectName = step.getProzess().getProjekt().getTitel();
 
-        XMLConfiguration xmlConfig = ConfigPlugins.getPluginConfig(title);
-        xmlConfig.setExpressionEngine(new XPathExpressionEngine());
-        xmlConfig.setReloadingStrategy(new FileChangedReloadingStrategy());
-
-        SubnodeConfiguration myconfig = null;
-
-        SubnodeConfiguration fallbackconfig = null;
-
-        // order of configuration is:
-        // 1.) project name and step name matches
-        // 2.) step name matches and project is *
-        // 3.) project name matches and step name is *
-        // 4.) project name and step name are *
-        try {
-            myconfig = xmlConfig.configurationAt("/config[./project = '" + projectName + "'][./step = '" + step.getTitel() + "']");
-
-        } catch (IllegalArgumentException e) {
-            try {
-                myconfig = xmlConfig.configurationAt("/config[./project = '*'][./step = '" + step.getTitel() + "']");
-            } catch (IllegalArgumentException e1) {
-                try {
-                    myconfig = xmlConfig.configurationAt("/config[./project = '" + projectName + "'][./step = '*']");
-                } catch (IllegalArgumentException e2) {
-                    myconfig = xmlConfig.configurationAt("/config[./project = '*'][./step = '*']");
-                }
-            }
-        }
-        config = initConfig(myconfig);
-        try {
-            fallbackconfig = xmlConfig.configurationAt("/config[@type = 'default']");
-            defaultConfig = initConfig(fallbackconfig);
-        } catch (IllegalArgumentException e) {
+        // the configuration is parsed only once and cached until the file changes
+        ConfigCache.ParsedConfiguration parsedConfiguration = ConfigCache.get(title);
+        config = parsedConfiguration.getConfig(projectName, step.getTitel());
+        defaultConfig = parsedConfiguration.getDefaultConfig();
+        if (defaultConfig == null) {
             log.debug("No default block configured");
         }
 
@@ -147,6 +127,89 @@ public class XmpPlugin implements IStepPluginVersion2 {
 
     @Override
     public PluginReturnValue run() {
+        if (config.isAsync()) {
+            RunMetrics backgroundMetrics = new RunMetrics();
+            if (AsyncStepRunner.submit(step.getId(), config.getAsyncJobs(), () -> runInBackground(backgroundMetrics))) {
+                log.debug("XMP Plugin: step with ID " + step.getId() + " is executed in the background");
+                writeLogEntry(LogType.INFO, "Writing the XMP headers: The images are written in the background.");
+                return PluginReturnValue.WAIT;
+            }
+            // too many steps are waiting, use the workflow thread
+            log.info("XMP Plugin: background queue is full, write process with ID " + process.getId() + " directly");
+        }
+        return runDirectly();
+    }
+
+    /**
+     * Write the images in the current thread, regardless of the async setting. The step is not changed
+     * 
+     * @return FINISH, if all images were written
+     */
+    PluginReturnValue runDirectly() {
+        return run(new RunMetrics());
+    }
+
+    private PluginReturnValue run(RunMetrics runMetrics) {
+        // an identical request for the process is answered by the running request
+        String key = process.getId() + "_" + config.getVersion() + (defaultConfig == null ? "" : "_" + defaultConfig.getVersion());
+        return RunCoordinator.run(key, () -> runOnce(runMetrics), () -> writeLogEntry(LogType.INFO,
+                "Writing the XMP headers: The images are already written by another run, the result of this run is used."));
+    }
+
+    private PluginReturnValue runOnce(RunMetrics runMetrics) {
+        metrics = runMetrics;
+        metrics.start("process " + process.getId() + ", step " + step.getTitel());
+        PluginReturnValue result = PluginReturnValue.ERROR;
+        try {
+            result = writeImages();
+        } finally {
+            metrics.finish(result == PluginReturnValue.FINISH);
+        }
+        log.info("XMP Plugin: metrics for process with ID " + process.getId() + ": " + metrics.getSummary());
+        writeLogEntry(LogType.INFO, "Writing the XMP headers: " + metrics.getSummary());
+        return result;
+    }
+
+    /**
+     * Write the images in the background. The progress is written into the journal regularly. Afterwards the step is closed or set to error
+     * 
+     * @param runMetrics metrics of the run
+     */
+    private void runInBackground(RunMetrics runMetrics) {
+        ScheduledFuture<?> progress = null;
+        if (config.getProgressInterval() > 0) {
+            progress = AsyncStepRunner.schedule(() -> writeLogEntry(LogType.INFO, "Writing the XMP headers: " + runMetrics.getProgress() + "."),
+                    config.getProgressInterval());
+        }
+        PluginReturnValue result = PluginReturnValue.ERROR;
+        try {
+            result = run(runMetrics);
+        } catch (RuntimeException e) {
+            writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: " + e.getMessage());
+            log.error("Error while writing the XMP headers for process with ID " + process.getId(), e);
+        } finally {
+            if (progress != null) {
+                progress.cancel(false);
+            }
+        }
+        if (result == PluginReturnValue.FINISH) {
+            CloseStepHelper.closeStep(step, null);
+        } else {
+            step.setBearbeitungsstatusEnum(StepStatus.ERROR);
+            try {
+                StepManager.saveStep(step);
+            } catch (DAOException e) {
+                log.error("XMP Plugin: cannot set step with ID " + step.getId() + " to error", e);
+            }
+        }
+    }
+
+    /**
+     * Write the configured fields into the images of all configured folders
+     * 
+     * @return FINISH, if all images were written
+     */
+    private PluginReturnValue writeImages() {
 
         if (config.getFolders() == null || config.getFolders().size() == 0) {
             // don't write any images
@@ -160,7 +223,6 @@ public class XmpPlugin implements IStepPluginVersion2 {
             return PluginReturnValue.ERROR;
         }
 
-        Fileformat fileformat = null;
         logical = null;
         anchor = null;
         physical = null;
@@ -168,8 +230,9 @@ public class XmpPlugin implements IStepPluginVersion2 {
         try {
             // read metadata
             log.debug("XMP Plugin: read METS file");
-            fileformat = process.readMetadataFile();
-            digDoc = fileformat.getDigitalDocument();
+            long start = System.nanoTime();
+            digDoc = readMetadata();
+            metrics.addTime(Phase.READ_METADATA, start);
             logical = digDoc.getLogicalDocStruct();
             anchor = logical;
             if (logical.getType().isAnchor()) {
@@ -195,618 +258,406 @@ public class XmpPlugin implements IStepPluginVersion2 {
             return PluginReturnValue.ERROR;
         }
 
-        // check size of each folder to use
+        // evaluate everything that is the same for all images only once
+        resolver = new FieldValueResolver(process, step, prefs, digDoc, logical, anchor, physical);
+        plan = FieldEvaluationPlan.compile(config.getConfiguredFields(), resolver, false);
+        defaultPlan = null;
+        for (String name : plan.getMissingMetadataTypes()) {
+            writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: Cannot find metadata type " + name);
+        }
+
+        // list the images of all folders and check their size before any image is transferred or written
         log.debug("XMP Plugin: start running through all configured folders");
+        List<ImageFolder> folders = new ArrayList<>();
         for (String f : config.getFolders()) {
-            Path tempFolder = null;
             try {
                 String folderName = step.getProzess().getConfiguredImageFolder(f);
-                log.debug("XMP Plugin: run through folder " + folderName);
-                List<Path> images = null;
-                if (ConfigurationHelper.getInstance().useS3()) {
-                    log.debug("XMP Plugin: S3 is used, use this mode");
-                    // create temporary folder
-                    tempFolder = Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder(), "" + process.getId(), f);
-                    log.debug("XMP Plugin: tempfolder for S3 is " + tempFolder);
-                    if (!Files.exists(tempFolder)) {
-                        Files.createDirectories(tempFolder);
-                    }
-
-                    // download files into temporary folder
-                    log.debug("XMP Plugin: load images");
-                    StorageProvider.getInstance().downloadDirectory(Paths.get(folderName), tempFolder);
-
-                    // use downloaded images
-                    images = StorageProvider.getInstance().listFiles(tempFolder.toString());
-                    log.debug("XMP Plugin: Images from S3 loaded ");
-
-                } else {
-                    log.debug("XMP Plugin: no S3 used");
-                    images = StorageProvider.getInstance().listFiles(process.getConfiguredImageFolder(f), NIOFileUtils.imageNameFilter);
-                    log.debug("XMP Plugin: Images without S3 loaded");
-                }
-
+                log.debug("XMP Plugin: list images of folder " + folderName);
+                // in S3 mode only the object names are listed, nothing is downloaded
+                long start = System.nanoTime();
+                List<Path> images = StorageProvider.getInstance().listFiles(folderName, NIOFileUtils.imageNameFilter);
+                metrics.addTime(Phase.LIST_IMAGES, start);
                 if (pages.size() != images.size()) {
                     log.debug("XMP Plugin: number of images and assigned pages is different");
                     if (defaultConfig == null) {
                         // size in folder and mets file don't match, error
-                        log.debug("XMP Plugin: no default config, stop processing and delete tempfolder " + tempFolder);
+                        log.debug("XMP Plugin: no default config, stop processing");
                         writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: Different number of objects in folder '" + folderName
                                 + "' and in mets file. Default configuration is null.");
-                        cleanupTemporaryFolder(tempFolder);
                         return PluginReturnValue.ERROR;
-                    } else {
-                        if (!writeDefaultMetadataToImages(images)) {
-                            writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: Different number of objects in folder '" + folderName
-                                    + "' and in mets file. Default metadata could not be written.");
-                            log.debug("XMP Plugin: cleanup temporary folder " + tempFolder);
-                            cleanupTemporaryFolder(tempFolder);
-                            return PluginReturnValue.ERROR;
-                        }
                     }
-                } else if (!writeMetadataToImages(pages, images)) {
-                    log.debug("XMP Plugin: cleanup temporary folder " + tempFolder);
-                    cleanupTemporaryFolder(tempFolder);
-                    return PluginReturnValue.ERROR;
-                }
-                if (ConfigurationHelper.getInstance().useS3()) {
-                    // upload images
-                    log.debug("XMP Plugin: upload tempfolder content from " + tempFolder + " to " + Paths.get(folderName));
-                    StorageProvider.getInstance().uploadDirectory(tempFolder, Paths.get(folderName));
-
-                    // cleanup temporary folder
-                    log.debug("XMP Plugin: cleanup temporary folder " + tempFolder);
-                    cleanupTemporaryFolder(tempFolder);
                 }
+                folders.add(new ImageFolder(f, folderName, images, config.isSidecarFolder(f)));
+                metrics.addTotal(images.size());
             } catch (IOException | SwapException | DAOException e) {
                 writeLogEntry(LogType.ERROR,
                         "Error while writing the XMP headers: Error while writing metadata into images folder: " + e.getMessage());
                 log.error(
                         "Error while writing the XMP headers: Error while writing metadata into images folder for process with ID " + process.getId(),
                         e);
-                log.debug("XMP Plugin: cleanup temporary folder " + tempFolder);
-                cleanupTemporaryFolder(tempFolder);
                 return PluginReturnValue.ERROR;
             }
         }
-        return PluginReturnValue.FINISH;
-    }
 
-    private void cleanupTemporaryFolder(Path tempFolder) {
-        if (tempFolder != null) {
-            StorageProvider.getInstance().deleteDir(tempFolder);
+        // compute the page dependent values only once, they are used for all folders
+        List<String[]> pageValues = null;
+        long start = System.nanoTime();
+        for (ImageFolder folder : folders) {
+            if (pages.size() != folder.images.size()) {
+                if (defaultPlan == null) {
+                    defaultPlan = FieldEvaluationPlan.compile(defaultConfig.getConfiguredFields(), resolver, true);
+                    defaultPageValues = defaultPlan.computePage(null);
+                }
+            } else if (pageValues == null) {
+                pageValues = new ArrayList<>(pages.size());
+                for (DocStruct page : pages) {
+                    pageValues.add(plan.computePage(page));
+                }
+            }
+        }
+        metrics.addTime(Phase.EVALUATE, start);
+
+        boolean success = false;
+        try {
+            success = writeFolders(folders, pageValues);
+        } finally {
+            // the journals are closed on exceptions as well, so the next run can resume
+            for (ImageFolder folder : folders) {
+                if (folder.checkpoint != null) {
+                    if (success) {
+                        // the next run starts from the beginning
+                        folder.checkpoint.delete();
+                    } else {
+                        folder.checkpoint.close();
+                    }
+                }
+            }
+        }
+        if (!success) {
+            return PluginReturnValue.ERROR;
         }
+        return PluginReturnValue.FINISH;
     }
 
     /**
-     * Write the configured default fields to all images. The metadata can be taken only from the main structure element
+     * Read the METS file. If possible, only the structure and the metadata types of the configured fields are read, otherwise the complete document
      * 
-     * @param images list of image names
+     * @return the document
      */
-    private boolean writeDefaultMetadataToImages(List<Path> images) {
-        log.debug("XMP Plugin: write default metadata to images " + images);
-        for (Path image : images) {
-            log.debug("XMP Plugin: write default data into " + image.toString());
-            List<String> xmpFields = new ArrayList<>();
-            // handle different xmp fields
-            for (ImageMetadataField xmpFieldConfiguration : defaultConfig.getConfiguredFields()) {
-                log.debug("XMP Plugin: preparation for field " + xmpFieldConfiguration.getXmpName());
-                StringBuilder sb = new StringBuilder();
-                sb.append(xmpFieldConfiguration.getXmpName());
-                sb.append("=");
-                StringBuilder completeValue = new StringBuilder();
-                for (IMetadataField configuredField : xmpFieldConfiguration.getFieldList()) {
-                    StringBuilder fieldValue = new StringBuilder();
-
-                    if (configuredField instanceof DocstructField) {
-                        DocstructField docstructField = (DocstructField) configuredField;
-                        String language = docstructField.getLanguage();
-                        fieldValue.append(logical.getType().getNameByLanguage(language));
-                        // if its not first entry, add separator value
-                        if (completeValue.length() > 0) {
-                            completeValue.append(xmpFieldConfiguration.getSeparator());
-                        }
-                        completeValue.append(fieldValue.toString());
-                    } else if (configuredField instanceof MetadataField) {
-                        MetadataField metadataField = (MetadataField) configuredField;
-                        String name = metadataField.getName();
-                        MetadataType mdt = prefs.getMetadataTypeByName(name);
-                        if (mdt == null) {
-                            writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: Cannot find metadata type " + name);
-                            return false;
-                        }
-                        String value = null;
-
-                        switch (metadataField.getUse()) {
-                            case "physical":
-                                // get metadata from physical main element (physical location)
-                                value = getMetadataValue(mdt, physical, metadataField.isUseFirst(), metadataField.getSeparator());
-                                break;
-                            case "logical":
-                                // get metadata from top element (main title)
-                                value = getMetadataValue(mdt, logical, metadataField.isUseFirst(), metadataField.getSeparator());
-                                break;
-                            case "anchor":
-                                // get metadata from anchor element (publisher)
-                                if (anchor != null) {
-                                    value = getMetadataValue(mdt, anchor, metadataField.isUseFirst(), metadataField.getSeparator());
-                                }
-                                break;
-                        }
-                        if (StringUtils.isNotBlank(value)) {
-                            if (fieldValue.length() != 0) {
-                                fieldValue.append(metadataField.getSeparator());
-                            }
-                            // add prefix
-                            if (StringUtils.isNotBlank(metadataField.getStaticPrefix())) {
-                                fieldValue.append(metadataField.getStaticPrefix());
-                            }
-                            // add element
-                            fieldValue.append(value);
-                            // add suffix
-                            if (StringUtils.isNotBlank(metadataField.getStaticSuffix())) {
-                                fieldValue.append(metadataField.getStaticSuffix());
-                            }
-                        }
-
-                        // if its not first entry, add separator value
-                        if (completeValue.length() > 0) {
-                            completeValue.append(xmpFieldConfiguration.getSeparator());
-                        }
-                        completeValue.append(fieldValue.toString());
-                    } else if (configuredField instanceof StaticText) {
-                        getStaticTextConfiguration(xmpFieldConfiguration, completeValue, configuredField);
-                    } else if (configuredField instanceof ProcesspropertyField) {
-                        getProcessPropertyConfiguration(xmpFieldConfiguration, completeValue, configuredField);
-                    } else if (configuredField instanceof TemplatepropertyField) {
-                        getTemplatePropertyConfiguration(xmpFieldConfiguration, completeValue, configuredField);
-                    } else if (configuredField instanceof WorkpiecepropertyField) {
-                        getWorkpiecePropertyConfiguration(xmpFieldConfiguration, completeValue, configuredField);
-                    } else if (configuredField instanceof FilenameField) {
-                        getFilenameFieldConfiguration(image, xmpFieldConfiguration, completeValue, configuredField);
-                    } else if (configuredField instanceof VariableField) {
-                        getVariableFieldConfiguration(xmpFieldConfiguration, completeValue, configuredField);
-                    }
-                }
-                sb.append(completeValue);
-                log.debug("XMP Plugin: content for the field is: " + completeValue);
-                xmpFields.add(sb.toString());
-            }
-            // get configured parameter list, replace PARAM and FILE with actual values
-            List<String> parameterList = new ArrayList<>();
-            for (String tok : config.getParameter()) {
-                if ("{PARAM}".equals(tok)) {
-                    for (String field : xmpFields) {
-                        parameterList.add(field);
+    private DigitalDocument readMetadata() throws UGHException, IOException, SwapException {
+        if (config.isStreamMetadata()) {
+            List<ImageMetadataField> defaultFields = defaultConfig == null ? null : defaultConfig.getConfiguredFields();
+            Set<String> metadataTypes = MetsStreamReader.getRequiredMetadataTypes(config.getConfiguredFields(), defaultFields);
+            if (metadataTypes != null) {
+                log.debug("XMP Plugin: read structure and metadata types " + metadataTypes + " from METS file");
+                try (InputStream in = StorageProvider.getInstance().newInputStream(Paths.get(process.getMetadataFilePath()))) {
+                    DigitalDocument document = MetsStreamReader.read(in, prefs, metadataTypes);
+                    // the metadata of an anchor is stored in its own file, which is only read with the complete document
+                    if (!document.getLogicalDocStruct().getType().isAnchor()) {
+                        return document;
                     }
-                } else if ("{FILE}".equals(tok)) {
-                    parameterList.add(image.toString());
-                } else {
-                    parameterList.add(tok);
-                }
-            }
-            //            `["exiftool", "-overwrite_original", "-q", "-q", "-m", "-sep", ", ", "-xmp:location={}".format(location), "-xmp:Creator={}".format(photog), "-xmp:Description={}".format(im_caption), "-xmp:Subject={}".format(im_keywords),''
-            try {
-                // run script for current image
-                ShellScript s = new ShellScript(Paths.get(config.getCommand()));
-                int returnValue = s.run(parameterList);
-                log.debug("XMP Plugin: return code for command '" + s.getCommandString() + "' is " + returnValue);
-
-                if (returnValue != 0) {
-                    List<String> errors = s.getStdErr();
-                    writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: " + errors.toString());
-                    log.error("Error while writing the XMP headers for process with ID " + process.getId() + ": " + errors);
-                    return false;
+                    log.debug("XMP Plugin: the process has an anchor, read the complete METS file");
+                } catch (IOException | UGHException e) {
+                    log.info("XMP Plugin: cannot stream METS file of process with ID " + process.getId() + ", read the complete file: "
+                            + e.getMessage());
                 }
-            } catch (IOException | InterruptedException e) {
-                log.error(e);
+            } else {
+                log.debug("XMP Plugin: a variable or anchor field is configured, read the complete METS file");
             }
-
         }
-        log.debug("XMP Plugin: default metadata was written");
-        writeLogEntry(LogType.INFO, "Writing the XMP headers: Default metadata was written into the images.");
-        return true;
+        return process.readMetadataFile().getDigitalDocument();
     }
 
     /**
-     * Write the configured fields to all pages. The metadata is collected for each page individually
+     * Write all folders. If more than one folder is configured, the folders are written concurrently
      * 
-     * @param pages list of docstruct elements of all pages
-     * @param images list of image names
+     * @param folders the folders
+     * @param pageValues page dependent values of each page, null if no folder matches the pages
+     * @return true, if all folders were written
      */
-    private boolean writeMetadataToImages(List<DocStruct> pages, List<Path> images) {
-        log.debug("XMP Plugin: write metadata from pages "  + pages + " to images " + images);
-        for (int i = 0; i < pages.size(); i++) {
-            DocStruct page = pages.get(i);
-            Path image = images.get(i);
-            log.debug("XMP Plugin: write data into " + image.toString());
-
-            List<String> xmpFields = new ArrayList<>();
-            // handle different xmp fields
-            for (ImageMetadataField xmpFieldConfiguration : config.getConfiguredFields()) {
-                log.debug("XMP Plugin: preparation for field " + xmpFieldConfiguration.getXmpName());
-                StringBuilder sb = new StringBuilder();
-                sb.append(xmpFieldConfiguration.getXmpName());
-                sb.append("=");
-                StringBuilder completeValue = new StringBuilder();
-                for (IMetadataField configuredField : xmpFieldConfiguration.getFieldList()) {
-                    StringBuilder fieldValue = new StringBuilder();
-                    // get information from docstructs
-                    if (configuredField instanceof DocstructField) {
-
-                        getDocstructConfiguration(xmpFieldConfiguration, fieldValue, configuredField, completeValue, page);
-
-                    } else if (configuredField instanceof MetadataField) {
-                        getMetadataConfiguration(fieldValue, xmpFieldConfiguration, completeValue, configuredField, page);
-                    } else if (configuredField instanceof StaticText) {
-                        getStaticTextConfiguration(xmpFieldConfiguration, completeValue, configuredField);
-                    } else if (configuredField instanceof ProcesspropertyField) {
-                        getProcessPropertyConfiguration(xmpFieldConfiguration, completeValue, configuredField);
-                    } else if (configuredField instanceof TemplatepropertyField) {
-                        getTemplatePropertyConfiguration(xmpFieldConfiguration, completeValue, configuredField);
-                    } else if (configuredField instanceof WorkpiecepropertyField) {
-                        getWorkpiecePropertyConfiguration(xmpFieldConfiguration, completeValue, configuredField);
-                    } else if (configuredField instanceof FilenameField) {
-                        getFilenameFieldConfiguration(image, xmpFieldConfiguration, completeValue, configuredField);
-                    } else if (configuredField instanceof VariableField) {
-                        getVariableFieldConfiguration(xmpFieldConfiguration, completeValue, configuredField);
-                    }
-                }
-                sb.append(completeValue);
-                log.debug("XMP Plugin: content for the field is: " + completeValue);
-                xmpFields.add(sb.toString());
-            }
-            // get configured parameter list, replace PARAM and FILE with actual values
-            List<String> parameterList = new ArrayList<>();
-            for (String tok : config.getParameter()) {
-                if ("{PARAM}".equals(tok)) {
-                    for (String field : xmpFields) {
-                        parameterList.add(field);
-                    }
-                } else if ("{FILE}".equals(tok)) {
-                    parameterList.add(image.toString());
-                } else {
-                    parameterList.add(tok);
-                }
+    private boolean writeFolders(List<ImageFolder> folders, List<String[]> pageValues) {
+        if (folders.size() == 1) {
+            return writeFolder(folders.get(0), pageValues);
+        }
+        ExecutorService folderExecutor = Executors.newFixedThreadPool(folders.size());
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (ImageFolder folder : folders) {
+                results.add(folderExecutor.submit(() -> writeFolder(folder, pageValues)));
             }
-            //            `["exiftool", "-overwrite_original", "-q", "-q", "-m", "-sep", ", ", "-xmp:location={}".format(location), "-xmp:Creator={}".format(photog), "-xmp:Description={}".format(im_caption), "-xmp:Subject={}".format(im_keywords),''
-            try {
-                // run script for current image
-                ShellScript s = new ShellScript(Paths.get(config.getCommand()));
-                int returnValue = s.run(parameterList);
-                log.debug("XMP Plugin: return code for command '" + s.getCommandString() + "' is " + returnValue);
-
-                if (returnValue != 0) {
-                    List<String> errors = s.getStdErr();
-                    writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: " + errors.toString());
-                    log.error("Error while writing the XMP headers for process with ID " + process.getId() + ": " + errors);
-                    return false;
+            boolean success = true;
+            for (Future<Boolean> result : results) {
+                try {
+                    success = result.get() && success;
+                } catch (ExecutionException e) {
+                    writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: " + e.getCause().getMessage());
+                    log.error("Error while writing the XMP headers for process with ID " + process.getId(), e.getCause());
+                    success = false;
                 }
-            } catch (IOException | InterruptedException e) {
-                log.error(e);
             }
-
+            return success;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            folderExecutor.shutdownNow();
         }
-        log.debug("XMP Plugin: metadata was written");
-        writeLogEntry(LogType.INFO, "Writing the XMP headers: The metadata was written into the images.");
-        return true;
     }
 
-    private void getDocstructConfiguration(ImageMetadataField xmpFieldConfiguration, StringBuilder fieldValue, IMetadataField configuredField,
-            StringBuilder completeValue, DocStruct page) {
-        DocstructField docstructField = (DocstructField) configuredField;
-
-        String language = docstructField.getLanguage();
-        String use = docstructField.getUse();
-        // abort if page is not assigned to any docstruct
-        List<Reference> pageReferences = page.getAllFromReferences();
-        if (pageReferences == null || pageReferences.isEmpty()) {
-            return;
-        }
-        if (use.equals("first")) {
-            // use first (probably main) element
-            DocStruct ds = pageReferences.get(0).getSource();
-            fieldValue.append(ds.getType().getNameByLanguage(language));
-        } else if (use.equals("last")) {
-            // use last element
-            DocStruct ds = pageReferences.get(pageReferences.size() - 1).getSource();
-            fieldValue.append(ds.getType().getNameByLanguage(language));
-        } else {
-            // use all referenced elements
-            for (Reference ref : pageReferences) {
-                // if its not first entry, add separator value
-                if (fieldValue.length() != 0) {
-                    fieldValue.append(docstructField.getSeparator());
-                }
-                fieldValue.append(ref.getSource().getType().getNameByLanguage(language));
-
+    /**
+     * Write the images of a single folder. If another run writes the same folder, wait until it is finished
+     * 
+     * @param folder the folder
+     * @param pageValues page dependent values of each page, null if the folder does not match the pages
+     * @return true, if the folder was written
+     */
+    private boolean writeFolder(ImageFolder folder, List<String[]> pageValues) {
+        Lock lock = RunCoordinator.getFolderLock(process.getId(), folder.folderName);
+        try {
+            if (!lock.tryLock()) {
+                log.info("XMP Plugin: folder " + folder.folderName + " is locked by another run, wait until it is finished");
+                long start = System.nanoTime();
+                lock.lockInterruptibly();
+                metrics.addTime(Phase.IO_WAIT, start);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: Interrupted while waiting for folder '" + folder.name + "'.");
+            return false;
         }
-        // if its not first entry, add separator value
-        if (completeValue.length() > 0) {
-            completeValue.append(xmpFieldConfiguration.getSeparator());
+        try {
+            return writeLockedFolder(folder, pageValues);
+        } finally {
+            lock.unlock();
         }
-        completeValue.append(fieldValue.toString());
     }
 
-    private void getMetadataConfiguration(StringBuilder fieldValue, ImageMetadataField xmpFieldConfiguration, StringBuilder completeValue,
-            IMetadataField configuredField, DocStruct page) {
-        MetadataField metadataField = (MetadataField) configuredField;
-        String name = metadataField.getName();
-        MetadataType mdt = prefs.getMetadataTypeByName(name);
-        if (mdt == null) {
-            writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: Cannot find metadata type " + name);
-            return;
-        }
-        String value = null;
-
-        List<Reference> pageReferences = null;
-        if (page != null) {
-            pageReferences = page.getAllFromReferences();
-        }
-
-        switch (metadataField.getUse()) {
-            case "physical":
-                // get metadata from physical main element (physical location)
-                value = getMetadataValue(mdt, physical, metadataField.isUseFirst(), metadataField.getSeparator());
-                break;
-            case "page":
-                if (page != null) {
-                    // get metadata from physical page element (urn)
-                    value = getMetadataValue(mdt, page, metadataField.isUseFirst(), metadataField.getSeparator());
-                }
-                break;
-            case "logical":
-                // get metadata from top element (main title)
-                value = getMetadataValue(mdt, logical, metadataField.isUseFirst(), metadataField.getSeparator());
-                break;
-            case "anchor":
-                // get metadata from anchor element (publisher)
-                if (anchor != null) {
-                    value = getMetadataValue(mdt, anchor, metadataField.isUseFirst(), metadataField.getSeparator());
-                }
-                break;
-            case "current":
-                if (page != null) {
-                    // get metadata from last element (chapter title)
-                    if (pageReferences == null || pageReferences.isEmpty()) {
-                        break;
-                    }
-                    DocStruct ds = pageReferences.get(pageReferences.size() - 1).getSource();
-                    value = getMetadataValue(mdt, ds, metadataField.isUseFirst(), metadataField.getSeparator());
-                    // deepest in hierarchy
-                }
-                break;
-            case "last":
-                if (pageReferences == null || pageReferences.isEmpty()) {
-                    break;
+    private boolean writeLockedFolder(ImageFolder folder, List<String[]> pageValues) {
+        Path tempFolder = null;
+        try {
+            log.debug("XMP Plugin: run through folder " + folder.folderName);
+            if (config.isIncremental()) {
+                folder.manifest = FingerprintManifest.load(Paths.get(process.getProcessDataDirectory(), "xmp_manifest_" + folder.name + ".txt"));
+            }
+            // images written by an earlier, unfinished run are skipped
+            Path checkpointFolder = ConfigurationHelper.getInstance().useS3() ? Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder())
+                    : Paths.get(process.getProcessDataDirectory());
+            folder.checkpoint = CheckpointJournal.open(checkpointFolder, process.getId() + "_" + folder.name, config.getVersion());
+            List<Path> images = folder.images;
+            if (ConfigurationHelper.getInstance().useS3()) {
+                log.debug("XMP Plugin: S3 is used, use this mode");
+                // create temporary folder
+                tempFolder = Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder(), "" + process.getId(), folder.name);
+                log.debug("XMP Plugin: tempfolder for S3 is " + tempFolder);
+                if (!Files.exists(tempFolder)) {
+                    Files.createDirectories(tempFolder);
                 }
-                for (Reference ref : pageReferences) {
-                    String metadataValue = getMetadataValue(mdt, ref.getSource(), metadataField.isUseFirst(), metadataField.getSeparator());
-                    if (!StringUtils.isBlank(metadataValue)) {
-                        value = metadataValue;
-                    }
+
+                // the images are downloaded one by one while they are written
+                folder.transfer = new S3Transfer(folder.storageFolder, tempFolder, config.getS3DiskBudget(), config.getS3Uploads(), metrics);
+                List<Path> localImages = new ArrayList<>(images.size());
+                for (Path remoteImage : images) {
+                    localImages.add(folder.transfer.getLocalImage(remoteImage.getFileName().toString()));
                 }
-                break;
-            default:
-                if (page != null) {
-                    //  any/all
-                    // get metadata from all logical elements
-                    if (pageReferences == null || pageReferences.isEmpty()) {
-                        break;
-                    }
-                    StringBuilder metadata = new StringBuilder();
-                    for (Reference ref : pageReferences) {
-                        String metadataValue = getMetadataValue(mdt, ref.getSource(), metadataField.isUseFirst(), metadataField.getSeparator());
-                        if (metadata.length() != 0) {
-                            metadata.append(metadataField.getSeparator());
-                        }
-                        metadata.append(metadataValue);
-                    }
-                    value = metadata.toString();
+                images = localImages;
+            }
+
+            if (pageValues == null || pageValues.size() != images.size()) {
+                if (!writeDefaultMetadataToImages(folder, images)) {
+                    writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: Different number of objects in folder '" + folder.folderName
+                            + "' and in mets file. Default metadata could not be written.");
+                    log.debug("XMP Plugin: cleanup temporary folder " + tempFolder);
+                    cleanupTemporaryFolder(tempFolder);
+                    return false;
                 }
-                break;
-        }
-        if (StringUtils.isNotBlank(value)) {
-            if (fieldValue.length() != 0) {
-                fieldValue.append(metadataField.getSeparator());
+            } else if (!writeMetadataToImages(folder, pageValues, images)) {
+                log.debug("XMP Plugin: cleanup temporary folder " + tempFolder);
+                cleanupTemporaryFolder(tempFolder);
+                return false;
             }
-            // add prefix
-            if (StringUtils.isNotBlank(metadataField.getStaticPrefix())) {
-                fieldValue.append(metadataField.getStaticPrefix());
+            if (folder.transfer != null) {
+                log.info("XMP Plugin: folder " + folder.folderName + ": " + folder.transfer.getSummary());
+                writeLogEntry(LogType.INFO, "Writing the XMP headers: Folder '" + folder.name + "': " + folder.transfer.getSummary() + ".");
+                // the images were uploaded after they were written, cleanup temporary folder
+                log.debug("XMP Plugin: cleanup temporary folder " + tempFolder);
+                cleanupTemporaryFolder(tempFolder);
             }
-            // add element
-            fieldValue.append(value);
-            // add suffix
-            if (StringUtils.isNotBlank(metadataField.getStaticSuffix())) {
-                fieldValue.append(metadataField.getStaticSuffix());
+            if (folder.manifest != null) {
+                // store the state of the written images
+                folder.manifest.update();
+                folder.manifest.save();
             }
+        } catch (IOException | SwapException e) {
+            writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: Error while writing metadata into images folder: " + e.getMessage());
+            log.error("Error while writing the XMP headers: Error while writing metadata into images folder for process with ID " + process.getId(),
+                    e);
+            log.debug("XMP Plugin: cleanup temporary folder " + tempFolder);
+            cleanupTemporaryFolder(tempFolder);
+            return false;
         }
-
-        // if its not first entry, add separator value
-        if (completeValue.length() > 0) {
-            completeValue.append(xmpFieldConfiguration.getSeparator());
-        }
-        completeValue.append(fieldValue.toString());
+        return true;
     }
 
-    private void getStaticTextConfiguration(ImageMetadataField xmpFieldConfiguration, StringBuilder completeValue, IMetadataField configuredField) {
-        StaticText staticText = (StaticText) configuredField;
-        if (completeValue.length() > 0) {
-            completeValue.append(xmpFieldConfiguration.getSeparator());
+    private void cleanupTemporaryFolder(Path tempFolder) {
+        if (tempFolder != null) {
+            StorageProvider.getInstance().deleteDir(tempFolder);
         }
-        completeValue.append(staticText.getText());
     }
 
-    private void getProcessPropertyConfiguration(ImageMetadataField xmpFieldConfiguration, StringBuilder completeValue,
-            IMetadataField configuredField) {
-        ProcesspropertyField field = (ProcesspropertyField) configuredField;
-
-        StringBuilder subValue = new StringBuilder();
-        for (GoobiProperty prop : process.getEigenschaften()) {
-            if (prop.getPropertyName().equals(field.getName())) {
-                if (subValue.length() > 0) {
-                    subValue.append(field.getSeparator());
+    /**
+     * Write the configured default fields to all images. The metadata can be taken only from the main structure element
+     * 
+     * @param folder the current folder
+     * @param images list of image names
+     */
+    private boolean writeDefaultMetadataToImages(ImageFolder folder, List<Path> images) {
+        log.debug("XMP Plugin: write default metadata to images " + images);
+        if (!defaultPlan.getMissingMetadataTypes().isEmpty()) {
+            for (String name : defaultPlan.getMissingMetadataTypes()) {
+                writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: Cannot find metadata type " + name);
+            }
+            return false;
+        }
+        // images with the same fields are written together
+        ImageJobDispatcher dispatcher = new ImageJobDispatcher(config, folder.transfer, true, folder.sidecar, metrics);
+        dispatcher.setWrittenListener(folder.checkpoint::confirm);
+        // without a filename field all images get the same fields
+        List<Map.Entry<String, String>> sharedFields = defaultPlan.isImageDependent() ? null : defaultPlan.evaluate(defaultPageValues, null);
+        try {
+            for (Path image : images) {
+                long start = System.nanoTime();
+                List<Map.Entry<String, String>> xmpFields = sharedFields != null ? sharedFields : defaultPlan.evaluate(defaultPageValues, image);
+                metrics.addTime(Phase.EVALUATE, start);
+                if (isSkipped(folder, image, xmpFields)) {
+                    continue;
                 }
-                subValue.append(prop.getPropertyValue());
-                if (field.isUseFirst()) {
-                    break;
+                log.debug("XMP Plugin: write default data into " + image.toString());
+                String error = dispatcher.submit(folder.createJob(image, xmpFields));
+                if (error != null) {
+                    writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: " + error);
+                    log.error("Error while writing the XMP headers for process with ID " + process.getId() + ": " + error);
+                    return false;
                 }
+
             }
+        } catch (RuntimeException e) {
+            dispatcher.cancel();
+            throw e;
         }
-        if (subValue.length() > 0) {
-            if (completeValue.length() > 0) {
-                completeValue.append(xmpFieldConfiguration.getSeparator());
-            }
-            completeValue.append(subValue.toString());
+        if (!collectResults(folder, dispatcher)) {
+            return false;
         }
+        log.debug("XMP Plugin: default metadata was written");
+        writeLogEntry(LogType.INFO, "Writing the XMP headers: Default metadata was written into the " + folder.getTarget() + ".");
+        return true;
     }
 
-    private void getTemplatePropertyConfiguration(ImageMetadataField xmpFieldConfiguration, StringBuilder completeValue,
-            IMetadataField configuredField) {
-        TemplatepropertyField field = (TemplatepropertyField) configuredField;
-        StringBuilder subValue = new StringBuilder();
-
-                for (GoobiProperty prop : process.getEigenschaften()) {
-                    if (prop.getPropertyName().equals(field.getName())) {
-                        if (subValue.length() > 0) {
-                            subValue.append(field.getSeparator());
-                        }
-                        subValue.append(prop.getPropertyValue());
-                        if (field.isUseFirst()) {
-                            break;
-                        }
-                    }
-            }
-            if (subValue.length() > 0) {
-                if (completeValue.length() > 0) {
-                    completeValue.append(xmpFieldConfiguration.getSeparator());
+    /**
+     * Write the configured fields to all pages. The metadata is collected for each page individually
+     * 
+     * @param folder the current folder
+     * @param pageValues page dependent values of each page
+     * @param images list of image names
+     */
+    private boolean writeMetadataToImages(ImageFolder folder, List<String[]> pageValues, List<Path> images) {
+        log.debug("XMP Plugin: write metadata to images " + images);
+        ImageJobDispatcher dispatcher = new ImageJobDispatcher(config, folder.transfer, false, folder.sidecar, metrics);
+        dispatcher.setWrittenListener(folder.checkpoint::confirm);
+        try {
+            for (int i = 0; i < pageValues.size(); i++) {
+                Path image = images.get(i);
+                long start = System.nanoTime();
+                List<Map.Entry<String, String>> xmpFields = plan.evaluate(pageValues.get(i), image);
+                metrics.addTime(Phase.EVALUATE, start);
+                if (isSkipped(folder, image, xmpFields)) {
+                    continue;
                 }
-                completeValue.append(subValue.toString());
-            }
-        
-    }
-
-    private void getWorkpiecePropertyConfiguration(ImageMetadataField xmpFieldConfiguration, StringBuilder completeValue,
-            IMetadataField configuredField) {
-        WorkpiecepropertyField field = (WorkpiecepropertyField) configuredField;
-        StringBuilder subValue = new StringBuilder();
-      
-                for (GoobiProperty prop : process.getEigenschaften()) {
-                    if (prop.getPropertyName().equals(field.getName())) {
-                        if (subValue.length() > 0) {
-                            subValue.append(field.getSeparator());
-                        }
-                        subValue.append(prop.getPropertyValue());
-                        if (field.isUseFirst()) {
-                            break;
-                        }
-                    
-
-                    }
-            }
-            if (subValue.length() > 0) {
-                if (completeValue.length() > 0) {
-                    completeValue.append(xmpFieldConfiguration.getSeparator());
+                log.debug("XMP Plugin: write data into " + image.toString());
+                String error = dispatcher.submit(folder.createJob(image, xmpFields));
+                if (error != null) {
+                    writeLogEntry(LogType.ERROR, "Error while writing the XMP headers: " + error);
+                    log.error("Error while writing the XMP headers for process with ID " + process.getId() + ": " + error);
+                    return false;
                 }
-                completeValue.append(subValue.toString());
-            }
-        
-    }
-
-    private void getVariableFieldConfiguration(ImageMetadataField xmpFieldConfiguration, StringBuilder completeValue,
-            IMetadataField configuredField) {
-        VariableField field = (VariableField) configuredField;
 
-        String value = new VariableReplacer(digDoc, prefs, process, step).replace(field.getName());
-        if (StringUtils.isNotBlank(value)) {
-            if (completeValue.length() > 0) {
-                completeValue.append(xmpFieldConfiguration.getSeparator());
             }
-            completeValue.append(value);
+        } catch (RuntimeException e) {
+            dispatcher.cancel();
+            throw e;
         }
+        if (!collectResults(folder, dispatcher)) {
+            return false;
+        }
+        log.debug("XMP Plugin: metadata was written");
+        writeLogEntry(LogType.INFO, "Writing the XMP headers: The metadata was written into the " + folder.getTarget() + ".");
+        return true;
     }
 
-    private void getFilenameFieldConfiguration(Path image, ImageMetadataField xmpFieldConfiguration, StringBuilder completeValue,
-            IMetadataField configuredField) {
-        FilenameField field = (FilenameField) configuredField;
-        if (completeValue.length() > 0) {
-            completeValue.append(xmpFieldConfiguration.getSeparator());
+    /**
+     * Wait until all images of the folder are written. The errors are written into the journal together
+     * 
+     * @param folder the current folder
+     * @param dispatcher dispatcher of the current folder
+     * @return true, if all images were written
+     */
+    private boolean collectResults(ImageFolder folder, ImageJobDispatcher dispatcher) {
+        List<String> errors = dispatcher.finish();
+        if (!errors.isEmpty()) {
+            writeLogEntry(LogType.ERROR,
+                    "Error while writing the XMP headers: " + errors.size() + " of " + dispatcher.size() + " images failed: " + errors);
+            log.error("Error while writing the XMP headers for process with ID " + process.getId() + ": " + errors);
+            return false;
         }
-        if (field.isUseAbsolutePath()) {
-            completeValue.append(image.toString());
-        } else {
-            completeValue.append(image.getFileName().toString());
+        if (folder.checkpoint.getResumed() > 0) {
+            log.info("XMP Plugin: " + folder.checkpoint.getResumed() + " images of folder " + folder.folderName + " were written by the previous run");
+            writeLogEntry(LogType.INFO, "Writing the XMP headers: Resumed folder '" + folder.name + "', " + folder.checkpoint.getResumed()
+                    + " images were already written by the previous run.");
         }
+        if (folder.manifest != null) {
+            log.info("XMP Plugin: " + folder.skippedImages + " unchanged images skipped, " + dispatcher.size() + " images written for process with ID "
+                    + process.getId());
+            writeLogEntry(LogType.INFO, "Writing the XMP headers: " + folder.skippedImages + " unchanged images were skipped.");
+        }
+        return true;
     }
 
     /**
-     * Get metadata value for a given metadata type from a docstruct. The metadataType can be a person or a simple metadata. If no metadata with this
-     * type is found, an empty String is returned
+     * Check if the image was already written by an earlier, unfinished run or, in incremental mode, if it was already written with the same fields.
+     * Otherwise the image is added to the checkpoint and the manifest
      * 
-     * @param metadataType {@link MetadataType} the type
-     * @param docstruct {@link DocStruct} current docstruct
-     * @param useFirst stop after first occurrence or use all
-     * @param separator use this character to separate entries, if useFirst is set to false
-     * @return
+     * @param folder the current folder
+     * @param image the image
+     * @param xmpFields fields to write
+     * @return true, if the image can be skipped
      */
-    private String getMetadataValue(MetadataType metadataType, DocStruct docstruct, boolean useFirst, String separator) {
-        StringBuilder result = new StringBuilder();
-        if (metadataType.getIsPerson()) {
-            // get person value
-            // get all persons
-            List<Person> personList = docstruct.getAllPersonsByType(metadataType);
-            if (personList != null && !personList.isEmpty()) {
-                for (Person person : personList) {
-                    // get display name
-                    String value = null;
-                    if (StringUtils.isNotBlank(person.getLastname()) && StringUtils.isNotBlank(person.getFirstname())) {
-                        value = person.getLastname() + ", " + person.getFirstname();
-                    } else if (StringUtils.isBlank(person.getFirstname())) {
-                        value = person.getLastname();
-                    } else {
-                        value = person.getFirstname();
-                    }
-
-                    if (StringUtils.isNotBlank(value)) {
-                        // if useFirst, return value
-                        if (useFirst) {
-                            return value;
-                        } else {
-                            // otherwise add it to result list
-                            if (result.length() > 0) {
-                                result.append(separator);
-                            }
-                            result.append(value);
-
-                        }
-                    }
-                }
+    private boolean isSkipped(ImageFolder folder, Path image, List<Map.Entry<String, String>> xmpFields) {
+        String name = image.getFileName().toString();
+        String hash = FingerprintManifest.hash(xmpFields, config.getVersion());
+        Path storedImage = folder.storageFolder.resolve(name);
+        if (folder.sidecar) {
+            // the image is not changed, compare the sidecar instead
+            storedImage = folder.getSidecar(storedImage);
+        }
+        if (folder.checkpoint.isCompleted(name, hash)) {
+            log.debug("XMP Plugin: skip image " + image + ", it was written by the previous run");
+            metrics.addSkipped(1);
+            if (folder.manifest != null) {
+                folder.manifest.markPending(name, hash, storedImage);
             }
-
+            return true;
+        }
+        if (folder.manifest == null) {
+            return false;
+        }
+        boolean unchanged = folder.manifest.isUnchanged(name, hash, storedImage);
+        if (unchanged) {
+            log.debug("XMP Plugin: skip unchanged image " + image);
+            folder.skippedImages++;
+            metrics.addSkipped(1);
         } else {
-            // get metadata value
-            List<? extends Metadata> metadataList = docstruct.getAllMetadataByType(metadataType);
-
-            if (metadataList != null && !metadataList.isEmpty()) {
-                for (Metadata metadata : metadataList) {
-                    String value = metadata.getValue();
-                    if (StringUtils.isNotBlank(value)) {
-                        // if useFirst, return value
-                        if (useFirst) {
-                            return value;
-                        } else {
-                            // otherwise add it to result list
-                            if (result.length() > 0) {
-                                result.append(separator);
-                            }
-                            result.append(value);
-                        }
-                    }
-                }
-            }
+            folder.manifest.markPending(name, hash, storedImage);
         }
-        return result.toString();
+        return unchanged;
     }
 
     @Override
@@ -816,8 +667,7 @@ public class XmpPlugin implements IStepPluginVersion2 {
 
     @Override
     public boolean execute() {
-        run();
-        return false;
+        return run() == PluginReturnValue.FINISH;
     }
 
     @Override
@@ -830,105 +680,6 @@ public class XmpPlugin implements IStepPluginVersion2 {
         return null;
     }
 
-    /**
-     * reads configfile and sets object variables accordingly, sets defaults for some settings if no value is specified
-     * 
-     * @param myconfig SubnodeConfiguration object of the config file
-     */
-    private Config initConfig(SubnodeConfiguration xmlconfig) {
-        Config config = new Config();
-
-        config.setFolders(Arrays.asList(xmlconfig.getStringArray("folder")));
-        List<HierarchicalConfiguration> metadataFields = xmlconfig.configurationsAt("/imageMetadataField");
-
-        config.setCommand(xmlconfig.getString("command"));
-        config.setParameter(Arrays.asList(xmlconfig.getStringArray("parameter")));
-
-        // read xmp fields
-        for (HierarchicalConfiguration fieldElement : metadataFields) {
-            String name = fieldElement.getString("./@name");
-            String fieldSeparator = fieldElement.getString("./separator", " ").replace("\\u0020", " ");
-
-            ImageMetadataField imageMetadataField = new ImageMetadataField();
-            imageMetadataField.setXmpName(name);
-            imageMetadataField.setSeparator(fieldSeparator);
-            config.addField(imageMetadataField);
-
-            // read field configuration
-
-            List<HierarchicalConfiguration> goobiFieldElements = fieldElement.configurationsAt("/goobiField");
-
-            for (HierarchicalConfiguration goobiFieldElement : goobiFieldElements) {
-                // metadata block
-                switch (goobiFieldElement.getString("./type", "metadata")) {
-                    case "metadata":
-                        MetadataField metadataField = new MetadataField();
-                        metadataField.setName(goobiFieldElement.getString("./name"));
-                        metadataField.setUse(goobiFieldElement.getString("./use", "logical"));
-                        metadataField.setSeparator(goobiFieldElement.getString("./separator", " ").replace("\\u0020", " "));
-                        metadataField.setUseFirst(goobiFieldElement.getBoolean("./useFirst", true));
-                        metadataField.setStaticPrefix(goobiFieldElement.getString("./staticPrefix", "").replace("\\u0020", " "));
-                        metadataField.setStaticSuffix(goobiFieldElement.getString("./staticSuffix", "").replace("\\u0020", " "));
-                        imageMetadataField.addField(metadataField);
-                        break;
-                        // docstruct
-                    case "docstruct":
-
-                        DocstructField docStructField = new DocstructField();
-                        docStructField.setLanguage(goobiFieldElement.getString("./language", ""));
-                        docStructField.setSeparator(goobiFieldElement.getString("./separator", " ").replace("\\u0020", " "));
-                        docStructField.setUse(goobiFieldElement.getString("./use", "last"));
-                        imageMetadataField.addField(docStructField);
-                        break;
-                        // static text
-                    case "staticText":
-                        StaticText text = new StaticText();
-                        text.setText(goobiFieldElement.getString("./text"));
-                        imageMetadataField.addField(text);
-                        break;
-
-                    case "processproperty":
-                        ProcesspropertyField field = new ProcesspropertyField();
-                        field.setName(goobiFieldElement.getString("./name"));
-                        field.setSeparator(goobiFieldElement.getString("./separator", " ").replace("\\u0020", " "));
-                        field.setUseFirst(goobiFieldElement.getBoolean("./useFirst", true));
-                        imageMetadataField.addField(field);
-                        break;
-
-                    case "templateproperty":
-                        TemplatepropertyField templ = new TemplatepropertyField();
-                        templ.setName(goobiFieldElement.getString("./name"));
-                        templ.setSeparator(goobiFieldElement.getString("./separator", " ").replace("\\u0020", " "));
-                        templ.setUseFirst(goobiFieldElement.getBoolean("./useFirst", true));
-                        imageMetadataField.addField(templ);
-                        break;
-
-                    case "workpieceproperty":
-                        WorkpiecepropertyField work = new WorkpiecepropertyField();
-                        work.setName(goobiFieldElement.getString("./name"));
-                        work.setSeparator(goobiFieldElement.getString("./separator", " ").replace("\\u0020", " "));
-                        work.setUseFirst(goobiFieldElement.getBoolean("./useFirst", true));
-                        imageMetadataField.addField(work);
-                        break;
-
-                    case "filename":
-                        FilenameField filenameField = new FilenameField();
-                        filenameField.setUseAbsolutePath(goobiFieldElement.getBoolean("./useAbsolutePath", true));
-                        imageMetadataField.addField(filenameField);
-                        break;
-
-                    case "variable":
-                        VariableField variableField = new VariableField();
-                        variableField.setName(goobiFieldElement.getString("./value"));
-                        imageMetadataField.addField(variableField);
-                        break;
-                }
-            }
-        }
-
-        return config;
-    }
-
     /**
      * write log entry in case of errors
      * 
@@ -939,4 +690,52 @@ public class XmpPlugin implements IStepPluginVersion2 {
         Helper.addMessageToProcessJournal(step.getProzess().getId(), type, text, "Write XMP header plugin");
     }
 
+    /**
+     * A configured image folder of the current run. Each folder is written by a single thread
+     */
+    private static class ImageFolder {
+        // configured name, e.g. master or media
+        private final String name;
+        private final String folderName;
+        // location of the images in the storage
+        private final Path storageFolder;
+        private final List<Path> images;
+        // write sidecar files instead of the images
+        private final boolean sidecar;
+        // images that need a sidecar with their full name, because another image has the same name with a different extension
+        private final Set<String> clashingImages;
+        // images written by earlier runs, null until the folder is processed
+        private CheckpointJournal checkpoint;
+        // manifest of the folder, null if the incremental mode is not used
+        private FingerprintManifest manifest;
+        // transfers the images in S3 mode, null otherwise
+        private S3Transfer transfer;
+        private int skippedImages;
+
+        private ImageFolder(String name, String folderName, List<Path> images, boolean sidecar) {
+            this.name = name;
+            this.folderName = folderName;
+            storageFolder = Paths.get(folderName);
+            this.images = images;
+            this.sidecar = sidecar;
+            clashingImages = sidecar ? XmpSidecarWriter.getClashingImages(images) : Collections.emptySet();
+        }
+
+        private Path getSidecar(Path image) {
+            return XmpSidecarWriter.getSidecar(image, clashingImages.contains(image.getFileName().toString()));
+        }
+
+        private XmpJob createJob(Path image, List<Map.Entry<String, String>> xmpFields) {
+            XmpJob job = new XmpJob(image, xmpFields);
+            if (sidecar) {
+                job.setSidecar(getSidecar(image));
+            }
+            return job;
+        }
+
+        private String getTarget() {
+            return sidecar ? "sidecar files" : "images";
+        }
+    }
+
 }
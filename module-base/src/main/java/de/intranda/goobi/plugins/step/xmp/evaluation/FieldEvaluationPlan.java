@@ -0,0 +1,268 @@
+package de.intranda.goobi.plugins.step.xmp.evaluation;
+
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.intranda.goobi.plugins.step.xmp.util.DocstructField;
+import de.intranda.goobi.plugins.step.xmp.util.FilenameField;
+import de.intranda.goobi.plugins.step.xmp.util.IMetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.ImageMetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.MetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.ProcesspropertyField;
+import de.intranda.goobi.plugins.step.xmp.util.StaticText;
+import de.intranda.goobi.plugins.step.xmp.util.TemplatepropertyField;
+import de.intranda.goobi.plugins.step.xmp.util.VariableField;
+import de.intranda.goobi.plugins.step.xmp.util.WorkpiecepropertyField;
+import ugh.dl.DocStruct;
+import ugh.dl.MetadataType;
+
+/**
+ * The configured fields compiled for a single run. All values that are the same for each image of the process are computed once, when the plan is
+ * created. The parts that depend on the page are computed once per page by {@link #computePage(DocStruct)}, they can be used for the images of all
+ * folders. Only the parts that depend on the image itself (the filename) are computed for each image.
+ */
+public class FieldEvaluationPlan {
+
+    /**
+     * Part of a field value that is computed for each image
+     */
+    @FunctionalInterface
+    private interface PageValue {
+        String get(DocStruct page);
+    }
+
+    @FunctionalInterface
+    private interface ImageValue {
+        String get(Path image);
+    }
+
+    /**
+     * A sequence of goobi fields within an xmp field. Static segments contain the already computed text, both for the case that the field value is
+     * still empty and that it already contains some text.
+     */
+    private static class Segment {
+        private PageValue pageValue;
+        // position of the value in the result of computePage
+        private int pageIndex = -1;
+        private ImageValue imageValue;
+        private String whenEmpty;
+        private String whenNotEmpty;
+
+        private boolean isStatic() {
+            return pageValue == null && imageValue == null;
+        }
+    }
+
+    private static class CompiledField {
+        private String xmpName;
+        private String separator;
+        private List<Segment> segments = new ArrayList<>();
+        // complete value, if the field contains no page dependent parts
+        private String constantValue;
+    }
+
+    private final List<CompiledField> fields = new ArrayList<>();
+
+    private final List<Segment> pageSegments = new ArrayList<>();
+
+    private boolean imageDependent;
+
+    private final Set<String> missingMetadataTypes = new LinkedHashSet<>();
+
+    private FieldEvaluationPlan() {
+    }
+
+    /**
+     * Compile the configured fields
+     *
+     * @param configuredFields list of configured xmp fields
+     * @param resolver resolver for the current process
+     * @param defaultMode true, if the pages cannot be assigned to the images. Only data from the main elements is used then
+     * @return the plan
+     */
+    public static FieldEvaluationPlan compile(List<ImageMetadataField> configuredFields, FieldValueResolver resolver, boolean defaultMode) {
+        FieldEvaluationPlan plan = new FieldEvaluationPlan();
+        for (ImageMetadataField xmpFieldConfiguration : configuredFields) {
+            CompiledField field = new CompiledField();
+            field.xmpName = xmpFieldConfiguration.getXmpName();
+            field.separator = xmpFieldConfiguration.getSeparator();
+
+            List<String> staticValues = new ArrayList<>();
+            for (IMetadataField configuredField : xmpFieldConfiguration.getFieldList()) {
+                PageValue pageValue = null;
+                ImageValue imageValue = null;
+                String staticValue = null;
+                if (configuredField instanceof DocstructField) {
+                    DocstructField docstructField = (DocstructField) configuredField;
+                    if (defaultMode) {
+                        staticValue = resolver.getDefaultDocstructValue(docstructField);
+                    } else {
+                        pageValue = page -> resolver.getDocstructValue(docstructField, page);
+                    }
+                } else if (configuredField instanceof MetadataField) {
+                    MetadataField metadataField = (MetadataField) configuredField;
+                    MetadataType mdt = resolver.getMetadataType(metadataField.getName());
+                    if (mdt == null) {
+                        plan.missingMetadataTypes.add(metadataField.getName());
+                        continue;
+                    }
+                    if (defaultMode || !FieldValueResolver.isPageDependent(metadataField)) {
+                        staticValue = resolver.getMetadataFieldValue(metadataField, mdt, null);
+                    } else {
+                        pageValue = page -> resolver.getMetadataFieldValue(metadataField, mdt, page);
+                    }
+                } else if (configuredField instanceof StaticText) {
+                    staticValue = resolver.getStaticTextValue((StaticText) configuredField);
+                } else if (configuredField instanceof ProcesspropertyField) {
+                    staticValue = resolver.getProcessPropertyValue((ProcesspropertyField) configuredField);
+                } else if (configuredField instanceof TemplatepropertyField) {
+                    staticValue = resolver.getTemplatePropertyValue((TemplatepropertyField) configuredField);
+                } else if (configuredField instanceof WorkpiecepropertyField) {
+                    staticValue = resolver.getWorkpiecePropertyValue((WorkpiecepropertyField) configuredField);
+                } else if (configuredField instanceof FilenameField) {
+                    FilenameField filenameField = (FilenameField) configuredField;
+                    imageValue = image -> resolver.getFilenameValue(filenameField, image);
+                } else if (configuredField instanceof VariableField) {
+                    staticValue = resolver.getVariableValue((VariableField) configuredField);
+                } else {
+                    continue;
+                }
+
+                if (pageValue == null && imageValue == null) {
+                    staticValues.add(staticValue);
+                } else {
+                    addStaticSegment(field, staticValues);
+                    Segment segment = new Segment();
+                    segment.imageValue = imageValue;
+                    if (imageValue != null) {
+                        plan.imageDependent = true;
+                    }
+                    if (pageValue != null) {
+                        segment.pageValue = pageValue;
+                        segment.pageIndex = plan.pageSegments.size();
+                        plan.pageSegments.add(segment);
+                    }
+                    field.segments.add(segment);
+                }
+            }
+            addStaticSegment(field, staticValues);
+            if (field.segments.isEmpty()) {
+                field.constantValue = "";
+            } else if (field.segments.size() == 1 && field.segments.get(0).isStatic()) {
+                field.constantValue = field.segments.get(0).whenEmpty;
+            }
+            plan.fields.add(field);
+        }
+        return plan;
+    }
+
+    /**
+     * Merge the collected static values into a single segment
+     */
+    private static void addStaticSegment(CompiledField field, List<String> staticValues) {
+        if (staticValues.isEmpty()) {
+            return;
+        }
+        StringBuilder whenEmpty = new StringBuilder();
+        // the marker represents any existing text, it is removed afterwards
+        StringBuilder whenNotEmpty = new StringBuilder("-");
+        for (String value : staticValues) {
+            append(whenEmpty, value, field.separator);
+            append(whenNotEmpty, value, field.separator);
+        }
+        Segment segment = new Segment();
+        segment.whenEmpty = whenEmpty.toString();
+        segment.whenNotEmpty = whenNotEmpty.substring(1);
+        field.segments.add(segment);
+        staticValues.clear();
+    }
+
+    /**
+     * Add a value to the field. If the value is null, nothing is added, otherwise the separator is added, if the field already contains some text
+     */
+    private static void append(StringBuilder completeValue, String value, String separator) {
+        if (value == null) {
+            return;
+        }
+        if (completeValue.length() > 0) {
+            completeValue.append(separator);
+        }
+        completeValue.append(value);
+    }
+
+    /**
+     * Compute the field values for a single image
+     *
+     * @param page the page assigned to the image, null if the pages cannot be assigned to the images
+     * @param image the image
+     * @return list of xmp field names and their values
+     */
+    public List<Map.Entry<String, String>> evaluate(DocStruct page, Path image) {
+        return evaluate(computePage(page), image);
+    }
+
+    /**
+     * Compute the values of the page dependent parts. This method uses the caches of the resolver and must be called by a single thread
+     *
+     * @param page the page, null if the pages cannot be assigned to the images
+     * @return the values, to be used in {@link #evaluate(String[], Path)}
+     */
+    public String[] computePage(DocStruct page) {
+        String[] values = new String[pageSegments.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = pageSegments.get(i).pageValue.get(page);
+        }
+        return values;
+    }
+
+    /**
+     * Compute the field values for a single image from the precomputed page values. This method can be called concurrently
+     *
+     * @param pageValues result of {@link #computePage(DocStruct)}
+     * @param image the image
+     * @return list of xmp field names and their values
+     */
+    public List<Map.Entry<String, String>> evaluate(String[] pageValues, Path image) {
+        List<Map.Entry<String, String>> xmpFields = new ArrayList<>(fields.size());
+        // reused for each field
+        StringBuilder buffer = new StringBuilder();
+        for (CompiledField field : fields) {
+            String value = field.constantValue;
+            if (value == null) {
+                buffer.setLength(0);
+                for (Segment segment : field.segments) {
+                    if (segment.isStatic()) {
+                        buffer.append(buffer.length() == 0 ? segment.whenEmpty : segment.whenNotEmpty);
+                    } else if (segment.pageValue != null) {
+                        append(buffer, pageValues[segment.pageIndex], field.separator);
+                    } else {
+                        append(buffer, segment.imageValue.get(image), field.separator);
+                    }
+                }
+                value = buffer.toString();
+            }
+            xmpFields.add(new AbstractMap.SimpleImmutableEntry<>(field.xmpName, value));
+        }
+        return xmpFields;
+    }
+
+    /**
+     * @return true, if a field contains a part that differs between the images of a page, e.g. the filename
+     */
+    public boolean isImageDependent() {
+        return imageDependent;
+    }
+
+    /**
+     * @return names of configured metadata types that are not defined in the ruleset
+     */
+    public Set<String> getMissingMetadataTypes() {
+        return missingMetadataTypes;
+    }
+
+}
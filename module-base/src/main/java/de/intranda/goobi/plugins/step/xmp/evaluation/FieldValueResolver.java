@@ -0,0 +1,376 @@
+package de.intranda.goobi.plugins.step.xmp.evaluation;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+
+import de.intranda.goobi.plugins.step.xmp.util.DocstructField;
+import de.intranda.goobi.plugins.step.xmp.util.FilenameField;
+import de.intranda.goobi.plugins.step.xmp.util.MetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.ProcesspropertyField;
+import de.intranda.goobi.plugins.step.xmp.util.StaticText;
+import de.intranda.goobi.plugins.step.xmp.util.TemplatepropertyField;
+import de.intranda.goobi.plugins.step.xmp.util.VariableField;
+import de.intranda.goobi.plugins.step.xmp.util.WorkpiecepropertyField;
+import de.sub.goobi.helper.VariableReplacer;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataType;
+import ugh.dl.Person;
+import ugh.dl.Prefs;
+
+/**
+ * Computes the values of the configured goobi fields for the current process. Each method returns the text to add to the xmp field, or null, if
+ * nothing is added (in this case the field separator is not added either).
+ */
+public class FieldValueResolver {
+
+    private final Process process;
+
+    private final Step step;
+
+    private final Prefs prefs;
+
+    private final DigitalDocument digDoc;
+
+    private final DocStruct logical;
+
+    private final DocStruct anchor;
+
+    private final DocStruct physical;
+
+    private final PageReferenceIndex index;
+
+    // properties of the process, its templates and workpieces
+    private final PropertyIndex properties;
+
+    // created on first use, shared by all variable fields
+    private VariableReplacer replacer;
+
+    // replaced templates of the current run
+    private final Map<String, String> variableValues = new HashMap<>();
+
+    public FieldValueResolver(Process process, Step step, Prefs prefs, DigitalDocument digDoc, DocStruct logical, DocStruct anchor,
+            DocStruct physical) {
+        this.process = process;
+        this.step = step;
+        this.prefs = prefs;
+        this.digDoc = digDoc;
+        this.logical = logical;
+        this.anchor = anchor;
+        this.physical = physical;
+        index = new PageReferenceIndex(physical);
+        properties = new PropertyIndex(process);
+    }
+
+    public MetadataType getMetadataType(String name) {
+        return prefs.getMetadataTypeByName(name);
+    }
+
+    /**
+     * Get the names of the structure elements the page is assigned to
+     *
+     * @param docstructField configured field
+     * @param page current page
+     * @return the names or null, if the page is not assigned to any element
+     */
+    public String getDocstructValue(DocstructField docstructField, DocStruct page) {
+        String language = docstructField.getLanguage();
+        String use = docstructField.getUse();
+        // abort if page is not assigned to any docstruct
+        List<DocStruct> pageReferences = index.getReferences(page);
+        if (pageReferences.isEmpty()) {
+            return null;
+        }
+        StringBuilder fieldValue = new StringBuilder();
+        if (use.equals("first")) {
+            // use first (probably main) element
+            fieldValue.append(index.getTypeName(pageReferences.get(0), language));
+        } else if (use.equals("last")) {
+            // use last element
+            fieldValue.append(index.getTypeName(pageReferences.get(pageReferences.size() - 1), language));
+        } else {
+            // use all referenced elements
+            for (DocStruct ds : pageReferences) {
+                // if its not first entry, add separator value
+                if (fieldValue.length() != 0) {
+                    fieldValue.append(docstructField.getSeparator());
+                }
+                fieldValue.append(index.getTypeName(ds, language));
+
+            }
+        }
+        return fieldValue.toString();
+    }
+
+    /**
+     * Get the name of the main element, used if the pages cannot be assigned to the images
+     *
+     * @param docstructField configured field
+     * @return the name
+     */
+    public String getDefaultDocstructValue(DocstructField docstructField) {
+        return String.valueOf(logical.getType().getNameByLanguage(docstructField.getLanguage()));
+    }
+
+    /**
+     * Get the metadata value for the configured element
+     *
+     * @param metadataField configured field
+     * @param mdt type of the metadata
+     * @param page current page, can be null if the pages cannot be assigned to the images
+     * @return the value with prefix and suffix, an empty string if no value was found
+     */
+    public String getMetadataFieldValue(MetadataField metadataField, MetadataType mdt, DocStruct page) {
+        String value = null;
+
+        List<DocStruct> pageReferences = null;
+        if (page != null) {
+            pageReferences = index.getReferences(page);
+        }
+
+        switch (metadataField.getUse()) {
+            case "physical":
+                // get metadata from physical main element (physical location)
+                value = getMetadataValue(mdt, physical, metadataField.isUseFirst(), metadataField.getSeparator());
+                break;
+            case "page":
+                if (page != null) {
+                    // get metadata from physical page element (urn)
+                    value = getMetadataValue(mdt, page, metadataField.isUseFirst(), metadataField.getSeparator());
+                }
+                break;
+            case "logical":
+                // get metadata from top element (main title)
+                value = getMetadataValue(mdt, logical, metadataField.isUseFirst(), metadataField.getSeparator());
+                break;
+            case "anchor":
+                // get metadata from anchor element (publisher)
+                if (anchor != null) {
+                    value = getMetadataValue(mdt, anchor, metadataField.isUseFirst(), metadataField.getSeparator());
+                }
+                break;
+            case "current":
+                if (page != null) {
+                    // get metadata from last element (chapter title)
+                    if (pageReferences == null || pageReferences.isEmpty()) {
+                        break;
+                    }
+                    DocStruct ds = pageReferences.get(pageReferences.size() - 1);
+                    value = getMetadataValue(mdt, ds, metadataField.isUseFirst(), metadataField.getSeparator());
+                    // deepest in hierarchy
+                }
+                break;
+            case "last":
+                if (pageReferences == null || pageReferences.isEmpty()) {
+                    break;
+                }
+                for (DocStruct ds : pageReferences) {
+                    String metadataValue = getMetadataValue(mdt, ds, metadataField.isUseFirst(), metadataField.getSeparator());
+                    if (!StringUtils.isBlank(metadataValue)) {
+                        value = metadataValue;
+                    }
+                }
+                break;
+            default:
+                if (page != null) {
+                    //  any/all
+                    // get metadata from all logical elements
+                    if (pageReferences == null || pageReferences.isEmpty()) {
+                        break;
+                    }
+                    StringBuilder metadata = new StringBuilder();
+                    for (DocStruct ds : pageReferences) {
+                        String metadataValue = getMetadataValue(mdt, ds, metadataField.isUseFirst(), metadataField.getSeparator());
+                        if (metadata.length() != 0) {
+                            metadata.append(metadataField.getSeparator());
+                        }
+                        metadata.append(metadataValue);
+                    }
+                    value = metadata.toString();
+                }
+                break;
+        }
+        return formatMetadataValue(metadataField, value);
+    }
+
+    /**
+     * Add prefix and suffix to the value
+     *
+     * @param metadataField configured field
+     * @param value the value or null
+     * @return the formatted value, an empty string if the value is blank
+     */
+    private String formatMetadataValue(MetadataField metadataField, String value) {
+        StringBuilder fieldValue = new StringBuilder();
+        if (StringUtils.isNotBlank(value)) {
+            // add prefix
+            if (StringUtils.isNotBlank(metadataField.getStaticPrefix())) {
+                fieldValue.append(metadataField.getStaticPrefix());
+            }
+            // add element
+            fieldValue.append(value);
+            // add suffix
+            if (StringUtils.isNotBlank(metadataField.getStaticSuffix())) {
+                fieldValue.append(metadataField.getStaticSuffix());
+            }
+        }
+        return fieldValue.toString();
+    }
+
+    /**
+     * Check if the value of the metadata field depends on the current page
+     *
+     * @param metadataField configured field
+     * @return true, if the value must be computed for each page
+     */
+    public static boolean isPageDependent(MetadataField metadataField) {
+        switch (metadataField.getUse()) {
+            case "physical":
+            case "logical":
+            case "anchor":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    public String getStaticTextValue(StaticText staticText) {
+        return String.valueOf(staticText.getText());
+    }
+
+    public String getProcessPropertyValue(ProcesspropertyField field) {
+        return getPropertyValue(properties.getProcessProperties(field.getName()), field.getSeparator(), field.isUseFirst());
+    }
+
+    public String getTemplatePropertyValue(TemplatepropertyField field) {
+        return getPropertyValue(properties.getTemplateProperties(field.getName()), field.getSeparator(), field.isUseFirst());
+    }
+
+    public String getWorkpiecePropertyValue(WorkpiecepropertyField field) {
+        return getPropertyValue(properties.getWorkpieceProperties(field.getName()), field.getSeparator(), field.isUseFirst());
+    }
+
+    private static String getPropertyValue(List<String> values, String separator, boolean useFirst) {
+        StringBuilder subValue = new StringBuilder();
+        for (String value : values) {
+            if (subValue.length() > 0) {
+                subValue.append(separator);
+            }
+            subValue.append(value);
+            if (useFirst) {
+                break;
+            }
+        }
+        return subValue.length() > 0 ? subValue.toString() : null;
+    }
+
+    /**
+     * Replace the placeholders of the variable field. The replacer has no access to the current page, so the value is the same for all images. Each
+     * template is replaced only once per run
+     *
+     * @param field configured field
+     * @return the value or null, if it is blank
+     */
+    public String getVariableValue(VariableField field) {
+        String value = variableValues.computeIfAbsent(field.getName(), this::replaceVariables);
+        return StringUtils.isNotBlank(value) ? value : null;
+    }
+
+    private String replaceVariables(String template) {
+        if (replacer == null) {
+            replacer = new VariableReplacer(digDoc, prefs, process, step);
+        }
+        String value = replacer.replace(template);
+        return value == null ? "" : value;
+    }
+
+    public String getFilenameValue(FilenameField field, Path image) {
+        if (field.isUseAbsolutePath()) {
+            return image.toString();
+        } else {
+            return image.getFileName().toString();
+        }
+    }
+
+    /**
+     * Get metadata value for a given metadata type from a docstruct. The metadataType can be a person or a simple metadata. If no metadata with this
+     * type is found, an empty String is returned
+     *
+     * @param metadataType {@link MetadataType} the type
+     * @param docstruct {@link DocStruct} current docstruct
+     * @param useFirst stop after first occurrence or use all
+     * @param separator use this character to separate entries, if useFirst is set to false
+     * @return
+     */
+    public String getMetadataValue(MetadataType metadataType, DocStruct docstruct, boolean useFirst, String separator) {
+        // the same structure elements are used for many pages, compute the value only once
+        return index.getMetadataValue(docstruct, metadataType, useFirst, separator, FieldValueResolver::readMetadataValue);
+    }
+
+    private static String readMetadataValue(MetadataType metadataType, DocStruct docstruct, boolean useFirst, String separator) {
+        StringBuilder result = new StringBuilder();
+        if (metadataType.getIsPerson()) {
+            // get person value
+            // get all persons
+            List<Person> personList = docstruct.getAllPersonsByType(metadataType);
+            if (personList != null && !personList.isEmpty()) {
+                for (Person person : personList) {
+                    // get display name
+                    String value = null;
+                    if (StringUtils.isNotBlank(person.getLastname()) && StringUtils.isNotBlank(person.getFirstname())) {
+                        value = person.getLastname() + ", " + person.getFirstname();
+                    } else if (StringUtils.isBlank(person.getFirstname())) {
+                        value = person.getLastname();
+                    } else {
+                        value = person.getFirstname();
+                    }
+
+                    if (StringUtils.isNotBlank(value)) {
+                        // if useFirst, return value
+                        if (useFirst) {
+                            return value;
+                        } else {
+                            // otherwise add it to result list
+                            if (result.length() > 0) {
+                                result.append(separator);
+                            }
+                            result.append(value);
+
+                        }
+                    }
+                }
+            }
+
+        } else {
+            // get metadata value
+            List<? extends Metadata> metadataList = docstruct.getAllMetadataByType(metadataType);
+
+            if (metadataList != null && !metadataList.isEmpty()) {
+                for (Metadata metadata : metadataList) {
+                    String value = metadata.getValue();
+                    if (StringUtils.isNotBlank(value)) {
+                        // if useFirst, return value
+                        if (useFirst) {
+                            return value;
+                        } else {
+                            // otherwise add it to result list
+                            if (result.length() > 0) {
+                                result.append(separator);
+                            }
+                            result.append(value);
+                        }
+                    }
+                }
+            }
+        }
+        return result.toString();
+    }
+
+}
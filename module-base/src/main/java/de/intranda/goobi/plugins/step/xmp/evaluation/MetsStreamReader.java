@@ -0,0 +1,368 @@
+package de.intranda.goobi.plugins.step.xmp.evaluation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.intranda.goobi.plugins.step.xmp.util.IMetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.ImageMetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.MetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.VariableField;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.DocStructType;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataType;
+import ugh.dl.Person;
+import ugh.dl.Prefs;
+import ugh.exceptions.UGHException;
+
+/**
+ * Reads the METS file of a process with a streaming parser. The resulting document contains the logical and physical structure elements, the links
+ * between them and only the metadata of the given types, all other metadata, the file groups and the administrative sections are skipped. This is
+ * enough to evaluate the configured fields and needs a fraction of the memory and time of the complete UGH document.
+ */
+public class MetsStreamReader {
+
+    private static final String REFERENCE_TYPE = "logical_physical";
+
+    // the metadata of a page is stored in attributes of the div, if it is not part of a dmdSec
+    private static final String[][] PAGE_ATTRIBUTES = { { "ORDER", "physPageNumber" }, { "ORDERLABEL", "logicalPageNumber" },
+            { "CONTENTIDS", "_urn" } };
+
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    static {
+        // the file is read from the local storage, but external entities are never needed
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final Prefs prefs;
+
+    private final Set<String> metadataTypes;
+
+    // metadata of the dmdSecs, by id
+    private final Map<String, List<Value>> sections = new HashMap<>();
+
+    private final List<Div> logicalDivs = new ArrayList<>();
+    private final List<Div> physicalDivs = new ArrayList<>();
+
+    // xlink:from and xlink:to of each smLink
+    private final List<String[]> links = new ArrayList<>();
+
+    private MetsStreamReader(Prefs prefs, Set<String> metadataTypes) {
+        this.prefs = prefs;
+        this.metadataTypes = metadataTypes;
+    }
+
+    /**
+     * Get the metadata types used by the configured fields
+     *
+     * @param configuredFields lists of configured xmp fields, null entries are ignored
+     * @return the names of the metadata types or null, if a field needs the complete document, e.g. a variable field or a field of the anchor, which
+     *         is stored in its own file
+     */
+    @SafeVarargs
+    public static Set<String> getRequiredMetadataTypes(List<ImageMetadataField>... configuredFields) {
+        Set<String> names = new LinkedHashSet<>();
+        for (List<ImageMetadataField> fields : configuredFields) {
+            if (fields == null) {
+                continue;
+            }
+            for (ImageMetadataField field : fields) {
+                for (IMetadataField configuredField : field.getFieldList()) {
+                    if (configuredField instanceof VariableField) {
+                        // the placeholders can refer to any metadata
+                        return null;
+                    } else if (configuredField instanceof MetadataField) {
+                        MetadataField metadataField = (MetadataField) configuredField;
+                        if ("anchor".equals(metadataField.getUse())) {
+                            // the anchor metadata is not part of the METS file
+                            return null;
+                        }
+                        names.add(metadataField.getName());
+                    }
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Read the structure and the given metadata types from the METS file
+     *
+     * @param in content of the METS file
+     * @param prefs the ruleset
+     * @param metadataTypes names of the metadata types to read
+     * @return a document with the logical and physical structure, the links and the metadata of the given types
+     * @throws IOException if the file cannot be parsed or does not contain a logical and a physical structure
+     * @throws UGHException if an element is not allowed by the ruleset
+     */
+    public static DigitalDocument read(InputStream in, Prefs prefs, Set<String> metadataTypes) throws IOException, UGHException {
+        MetsStreamReader reader = new MetsStreamReader(prefs, metadataTypes);
+        try {
+            XMLStreamReader xml = factory.createXMLStreamReader(in);
+            try {
+                reader.parse(xml);
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot parse METS file: " + e.getMessage(), e);
+        }
+        return reader.createDocument();
+    }
+
+    private void parse(XMLStreamReader xml) throws XMLStreamException {
+        String dmdId = null;
+        List<Div> structMap = null;
+        // open divs of the current structMap
+        List<Div> openDivs = new ArrayList<>();
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (xml.getLocalName()) {
+                    case "dmdSec":
+                        dmdId = xml.getAttributeValue(null, "ID");
+                        break;
+                    case "goobi":
+                        if (dmdId != null && isGoobiNamespace(xml.getNamespaceURI())) {
+                            readGoobiMetadata(xml, dmdId);
+                        }
+                        break;
+                    case "structMap":
+                        String type = xml.getAttributeValue(null, "TYPE");
+                        structMap = "LOGICAL".equals(type) ? logicalDivs : "PHYSICAL".equals(type) ? physicalDivs : null;
+                        break;
+                    case "div":
+                        if (structMap != null) {
+                            Div div = new Div(xml);
+                            if (openDivs.isEmpty()) {
+                                structMap.add(div);
+                            } else {
+                                openDivs.get(openDivs.size() - 1).children.add(div);
+                            }
+                            openDivs.add(div);
+                        }
+                        break;
+                    case "smLink":
+                        links.add(new String[] { getAttribute(xml, "from"), getAttribute(xml, "to") });
+                        break;
+                    default:
+                        break;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                switch (xml.getLocalName()) {
+                    case "dmdSec":
+                        dmdId = null;
+                        break;
+                    case "structMap":
+                        structMap = null;
+                        openDivs.clear();
+                        break;
+                    case "div":
+                        if (!openDivs.isEmpty()) {
+                            openDivs.remove(openDivs.size() - 1);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the metadata of the goobi extension of a dmdSec. Only the direct children of the extension are used, the members of metadata groups are
+     * skipped
+     */
+    private void readGoobiMetadata(XMLStreamReader xml, String dmdId) throws XMLStreamException {
+        List<Value> values = sections.computeIfAbsent(dmdId, k -> new ArrayList<>());
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = xml.getAttributeValue(null, "name");
+                String type = xml.getAttributeValue(null, "type");
+                if (depth == 1 && "metadata".equals(xml.getLocalName()) && metadataTypes.contains(name)) {
+                    if (type == null) {
+                        values.add(new Value(name, xml.getElementText(), null));
+                        continue;
+                    } else if ("person".equals(type)) {
+                        values.add(readPerson(xml, name));
+                        continue;
+                    }
+                }
+                depth++;
+            }
+        }
+    }
+
+    private static Value readPerson(XMLStreamReader xml, String name) throws XMLStreamException {
+        String firstname = null;
+        String lastname = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 1 && "firstName".equals(xml.getLocalName())) {
+                    firstname = xml.getElementText();
+                } else if (depth == 1 && "lastName".equals(xml.getLocalName())) {
+                    lastname = xml.getElementText();
+                } else {
+                    depth++;
+                }
+            }
+        }
+        return new Value(name, lastname, firstname);
+    }
+
+    private DigitalDocument createDocument() throws IOException, UGHException {
+        if (logicalDivs.isEmpty() || physicalDivs.isEmpty()) {
+            throw new IOException("METS file does not contain a logical and a physical structure");
+        }
+        DigitalDocument digDoc = new DigitalDocument();
+        Map<String, DocStruct> elements = new HashMap<>();
+        digDoc.setLogicalDocStruct(createDocStruct(digDoc, logicalDivs.get(0), elements, false));
+        digDoc.setPhysicalDocStruct(createDocStruct(digDoc, physicalDivs.get(0), elements, true));
+        // the order of the links defines the order of the structure elements of each page
+        for (String[] link : links) {
+            DocStruct source = elements.get(link[0]);
+            DocStruct target = elements.get(link[1]);
+            if (source != null && target != null) {
+                source.addReferenceTo(target, REFERENCE_TYPE);
+            }
+        }
+        return digDoc;
+    }
+
+    private DocStruct createDocStruct(DigitalDocument digDoc, Div div, Map<String, DocStruct> elements, boolean physical)
+            throws IOException, UGHException {
+        DocStructType type = prefs.getDocStrctTypeByName(div.type);
+        if (type == null) {
+            throw new IOException("Structure type " + div.type + " is not defined in the ruleset");
+        }
+        DocStruct docstruct = digDoc.createDocStruct(type);
+        Set<String> added = new LinkedHashSet<>();
+        for (String dmdId : div.dmdIds) {
+            List<Value> values = sections.get(dmdId);
+            if (values != null) {
+                for (Value value : values) {
+                    addValue(docstruct, value);
+                    added.add(value.name);
+                }
+            }
+        }
+        if (physical) {
+            for (String[] attribute : PAGE_ATTRIBUTES) {
+                String value = div.pageAttributes.get(attribute[0]);
+                if (value != null && metadataTypes.contains(attribute[1]) && !added.contains(attribute[1])) {
+                    addValue(docstruct, new Value(attribute[1], value, null));
+                }
+            }
+        }
+        if (div.id != null) {
+            elements.put(div.id, docstruct);
+        }
+        for (Div child : div.children) {
+            docstruct.addChild(createDocStruct(digDoc, child, elements, physical));
+        }
+        return docstruct;
+    }
+
+    private void addValue(DocStruct docstruct, Value value) throws UGHException {
+        MetadataType metadataType = prefs.getMetadataTypeByName(value.name);
+        if (metadataType == null) {
+            // the plan reports the missing type
+            return;
+        }
+        if (metadataType.getIsPerson()) {
+            Person person = new Person(metadataType);
+            person.setLastname(value.value);
+            person.setFirstname(value.firstname);
+            docstruct.addPerson(person);
+        } else {
+            Metadata metadata = new Metadata(metadataType);
+            metadata.setValue(value.value);
+            docstruct.addMetadata(metadata);
+        }
+    }
+
+    private static boolean isGoobiNamespace(String namespace) {
+        return namespace != null && namespace.startsWith("http://meta.goobi.org/");
+    }
+
+    /**
+     * Get an attribute by its local name, regardless of the namespace, e.g. xlink:from
+     */
+    private static String getAttribute(XMLStreamReader xml, String localName) {
+        for (int i = 0; i < xml.getAttributeCount(); i++) {
+            if (localName.equals(xml.getAttributeLocalName(i))) {
+                return xml.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A div of a structMap
+     */
+    private static class Div {
+        private final String id;
+        private final String type;
+        private final List<String> dmdIds = new ArrayList<>();
+        private final Map<String, String> pageAttributes = new HashMap<>();
+        private final List<Div> children = new ArrayList<>();
+
+        private Div(XMLStreamReader xml) {
+            id = xml.getAttributeValue(null, "ID");
+            type = xml.getAttributeValue(null, "TYPE");
+            String dmdId = xml.getAttributeValue(null, "DMDID");
+            if (StringUtils.isNotBlank(dmdId)) {
+                // a div can refer to several sections
+                for (String part : dmdId.trim().split("\\s+")) {
+                    dmdIds.add(part);
+                }
+            }
+            for (String[] attribute : PAGE_ATTRIBUTES) {
+                String value = xml.getAttributeValue(null, attribute[0]);
+                if (StringUtils.isNotBlank(value)) {
+                    pageAttributes.put(attribute[0], value);
+                }
+            }
+        }
+    }
+
+    /**
+     * A metadata value, the value is the last name for persons
+     */
+    private static class Value {
+        private final String name;
+        private final String value;
+        private final String firstname;
+
+        private Value(String name, String value, String firstname) {
+            this.name = name;
+            this.value = value;
+            this.firstname = firstname;
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package de.intranda.goobi.plugins.step.xmp.evaluation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import ugh.dl.DocStruct;
+import ugh.dl.DocStructType;
+import ugh.dl.MetadataType;
+import ugh.dl.Reference;
+
+/**
+ * Index of the structure elements each page is assigned to, built once per run. Consecutive pages usually belong to the same structure elements, so
+ * the formatted metadata values and the translated names of the structure types are cached as well. The index is not thread safe, it is used by the
+ * thread that evaluates the fields.
+ */
+public class PageReferenceIndex {
+
+    private final Map<DocStruct, List<DocStruct>> referencesByPage = new IdentityHashMap<>();
+
+    private final Map<MetadataKey, String> metadataValues = new HashMap<>();
+
+    private final Map<DocStructType, Map<String, String>> typeNames = new IdentityHashMap<>();
+
+    /**
+     * Create the index for all pages of the physical main element
+     *
+     * @param physical physical main element, can be null
+     */
+    public PageReferenceIndex(DocStruct physical) {
+        if (physical == null || physical.getAllChildren() == null) {
+            return;
+        }
+        for (DocStruct page : physical.getAllChildren()) {
+            referencesByPage.put(page, readReferences(page));
+        }
+    }
+
+    private static List<DocStruct> readReferences(DocStruct page) {
+        List<Reference> pageReferences = page.getAllFromReferences();
+        if (pageReferences == null || pageReferences.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<DocStruct> sources = new ArrayList<>(pageReferences.size());
+        for (Reference ref : pageReferences) {
+            sources.add(ref.getSource());
+        }
+        return Collections.unmodifiableList(sources);
+    }
+
+    /**
+     * Get the structure elements the page is assigned to, from the main element to the deepest element
+     *
+     * @param page the page
+     * @return list of structure elements, empty if the page is not assigned to any element
+     */
+    public List<DocStruct> getReferences(DocStruct page) {
+        List<DocStruct> references = referencesByPage.get(page);
+        if (references == null) {
+            // page is not part of the physical main element
+            references = readReferences(page);
+            referencesByPage.put(page, references);
+        }
+        return references;
+    }
+
+    /**
+     * Get the translated name of the structure type
+     *
+     * @param docstruct the structure element
+     * @param language the language
+     * @return the name
+     */
+    public String getTypeName(DocStruct docstruct, String language) {
+        DocStructType type = docstruct.getType();
+        Map<String, String> names = typeNames.computeIfAbsent(type, t -> new HashMap<>());
+        if (!names.containsKey(language)) {
+            names.put(language, type.getNameByLanguage(language));
+        }
+        return names.get(language);
+    }
+
+    /**
+     * Get a cached metadata value. If the value is not cached yet, it is computed by the given function
+     *
+     * @param docstruct the structure element
+     * @param metadataType the metadata type
+     * @param useFirst stop after first occurrence or use all
+     * @param separator separator between the occurrences
+     * @param loader computes the value
+     * @return the value
+     */
+    public String getMetadataValue(DocStruct docstruct, MetadataType metadataType, boolean useFirst, String separator, MetadataLoader loader) {
+        return metadataValues.computeIfAbsent(new MetadataKey(docstruct, metadataType, useFirst, separator),
+                k -> loader.load(metadataType, docstruct, useFirst, separator));
+    }
+
+    @FunctionalInterface
+    public interface MetadataLoader {
+        String load(MetadataType metadataType, DocStruct docstruct, boolean useFirst, String separator);
+    }
+
+    /**
+     * Cache key, the structure element and the metadata type are compared by identity
+     */
+    private static final class MetadataKey {
+        private final DocStruct docstruct;
+        private final MetadataType metadataType;
+        private final boolean useFirst;
+        private final String separator;
+
+        private MetadataKey(DocStruct docstruct, MetadataType metadataType, boolean useFirst, String separator) {
+            this.docstruct = docstruct;
+            this.metadataType = metadataType;
+            this.useFirst = useFirst;
+            this.separator = separator;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof MetadataKey)) {
+                return false;
+            }
+            MetadataKey other = (MetadataKey) obj;
+            return docstruct == other.docstruct && metadataType == other.metadataType && useFirst == other.useFirst
+                    && Objects.equals(separator, other.separator);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(docstruct), System.identityHashCode(metadataType), useFirst, separator);
+        }
+    }
+
+}
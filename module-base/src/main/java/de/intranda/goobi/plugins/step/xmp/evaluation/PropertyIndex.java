@@ -0,0 +1,90 @@
+package de.intranda.goobi.plugins.step.xmp.evaluation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.goobi.beans.GoobiProperty;
+import org.goobi.beans.Masterpiece;
+import org.goobi.beans.Process;
+import org.goobi.beans.Template;
+
+/**
+ * Values of the process, template and workpiece properties of a process, indexed by the property name. Each kind of property is read from its own
+ * source once per run, when it is used for the first time. The templates and workpieces are not read at all, if no such field is configured.
+ */
+public class PropertyIndex {
+
+    private final Process process;
+
+    private Map<String, List<String>> processProperties;
+
+    private Map<String, List<String>> templateProperties;
+
+    private Map<String, List<String>> workpieceProperties;
+
+    public PropertyIndex(Process process) {
+        this.process = process;
+    }
+
+    /**
+     * @param name name of the property
+     * @return the values of all process properties with this name, in the order of the process
+     */
+    public List<String> getProcessProperties(String name) {
+        if (processProperties == null) {
+            processProperties = new HashMap<>();
+            addAll(processProperties, process.getEigenschaften());
+        }
+        return get(processProperties, name);
+    }
+
+    /**
+     * @param name name of the property
+     * @return the values of all properties with this name of all templates of the process
+     */
+    public List<String> getTemplateProperties(String name) {
+        if (templateProperties == null) {
+            templateProperties = new HashMap<>();
+            if (process.getVorlagen() != null) {
+                for (Template template : process.getVorlagen()) {
+                    addAll(templateProperties, template.getEigenschaften());
+                }
+            }
+        }
+        return get(templateProperties, name);
+    }
+
+    /**
+     * @param name name of the property
+     * @return the values of all properties with this name of all workpieces of the process
+     */
+    public List<String> getWorkpieceProperties(String name) {
+        if (workpieceProperties == null) {
+            workpieceProperties = new HashMap<>();
+            if (process.getWerkstuecke() != null) {
+                for (Masterpiece workpiece : process.getWerkstuecke()) {
+                    addAll(workpieceProperties, workpiece.getEigenschaften());
+                }
+            }
+        }
+        return get(workpieceProperties, name);
+    }
+
+    private static void addAll(Map<String, List<String>> index, List<? extends GoobiProperty> properties) {
+        if (properties == null) {
+            return;
+        }
+        for (GoobiProperty property : properties) {
+            index.computeIfAbsent(property.getPropertyName(), k -> new ArrayList<>()).add(property.getPropertyValue());
+        }
+    }
+
+    private static List<String> get(Map<String, List<String>> index, String name) {
+        List<String> values = index.get(name);
+        return values == null ? Collections.emptyList() : values;
+    }
+
+}
@@ -0,0 +1,57 @@
+package de.intranda.goobi.plugins.step.xmp.exiftool;
+
+public final class ExiftoolArguments {
+
+    private static final String CSTR_PREFIX = "#[CSTR]";
+
+    private ExiftoolArguments() {
+    }
+
+    /**
+     * Convert a single argument into a line of an exiftool argument file. Exiftool reads one argument per line, so values containing line breaks,
+     * leading/trailing white spaces or a leading '#' are written as C-string (#[CSTR]) to keep them unchanged
+     *
+     * @param argument the argument
+     * @return the line to write into the argument file, without line break
+     */
+    public static String toArgfileLine(String argument) {
+        if (argument == null) {
+            return "";
+        }
+        if (!needsEscaping(argument)) {
+            return argument;
+        }
+        StringBuilder sb = new StringBuilder(CSTR_PREFIX);
+        for (char c : argument.toCharArray()) {
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean needsEscaping(String argument) {
+        if (argument.isEmpty()) {
+            return false;
+        }
+        if (argument.startsWith("#") || Character.isWhitespace(argument.charAt(0))
+                || Character.isWhitespace(argument.charAt(argument.length() - 1))) {
+            return true;
+        }
+        return argument.indexOf('\n') != -1 || argument.indexOf('\r') != -1;
+    }
+
+}
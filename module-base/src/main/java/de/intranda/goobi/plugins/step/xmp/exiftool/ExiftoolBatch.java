@@ -0,0 +1,134 @@
+package de.intranda.goobi.plugins.step.xmp.exiftool;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.sub.goobi.helper.ShellScript;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Collects the parameter lists of several images and writes them into a single argument file. Each image gets its own section, separated by
+ * '-execute', so exiftool is started only once for all images of the batch. The exit status of each section is reported on stdout and used to
+ * assign errors to the images.
+ */
+@Log4j2
+public class ExiftoolBatch {
+
+    private static final String STATUS_PREFIX = "XMP_STATUS=";
+
+    private static final String DONE_PREFIX = "XMP_DONE=";
+
+    private final String command;
+
+    private final Map<Path, List<String>> jobs = new LinkedHashMap<>();
+
+    public ExiftoolBatch(String command) {
+        this.command = command;
+    }
+
+    public void add(Path image, List<String> parameterList) {
+        jobs.put(image, parameterList);
+    }
+
+    public int size() {
+        return jobs.size();
+    }
+
+    public List<Path> getImages() {
+        return new ArrayList<>(jobs.keySet());
+    }
+
+    /**
+     * Write the argument file and run exiftool once for all collected images
+     *
+     * @return map with the error message of each image that could not be written, the map is empty, if all images were written
+     * @throws IOException if the argument file cannot be written or exiftool cannot be started
+     * @throws InterruptedException
+     */
+    public Map<Path, String> execute() throws IOException, InterruptedException {
+        Map<Path, String> errors = new HashMap<>();
+        if (jobs.isEmpty()) {
+            return errors;
+        }
+        List<Path> images = getImages();
+        Path argfile = Files.createTempFile("xmp-header-", ".args");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(argfile, StandardCharsets.UTF_8)) {
+                for (int i = 0; i < images.size(); i++) {
+                    if (i > 0) {
+                        writer.write("-execute");
+                        writer.newLine();
+                    }
+                    for (String argument : jobs.get(images.get(i))) {
+                        writer.write(ExiftoolArguments.toArgfileLine(argument));
+                        writer.newLine();
+                    }
+                    writer.write("-echo3");
+                    writer.newLine();
+                    writer.write(STATUS_PREFIX + i + " ${status}");
+                    writer.newLine();
+                    writer.write("-echo4");
+                    writer.newLine();
+                    writer.write(DONE_PREFIX + i);
+                    writer.newLine();
+                }
+            }
+
+            ShellScript s = new ShellScript(Paths.get(command));
+            int returnValue = s.run(Arrays.asList("-@", argfile.toString()));
+            log.debug("XMP Plugin: return code for batch of " + images.size() + " images is " + returnValue);
+
+            // exit status of each section
+            Map<Integer, Integer> status = new HashMap<>();
+            for (String line : s.getStdOut()) {
+                if (line.startsWith(STATUS_PREFIX)) {
+                    String[] parts = line.substring(STATUS_PREFIX.length()).trim().split(" ");
+                    try {
+                        status.put(Integer.valueOf(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : 0);
+                    } catch (NumberFormatException e) {
+                        log.debug("XMP Plugin: cannot parse status line " + line);
+                    }
+                }
+            }
+            // error messages are written before the end marker of their section
+            Map<Integer, List<String>> messages = new HashMap<>();
+            List<String> current = new ArrayList<>();
+            for (String line : s.getStdErr()) {
+                if (line.startsWith(DONE_PREFIX)) {
+                    try {
+                        messages.put(Integer.valueOf(line.substring(DONE_PREFIX.length()).trim()), current);
+                    } catch (NumberFormatException e) {
+                        log.debug("XMP Plugin: cannot parse marker " + line);
+                    }
+                    current = new ArrayList<>();
+                } else {
+                    current.add(line);
+                }
+            }
+
+            for (int i = 0; i < images.size(); i++) {
+                Integer imageStatus = status.get(i);
+                if (imageStatus == null) {
+                    // exiftool stopped before this section was processed
+                    errors.put(images.get(i), "no status reported, " + (current.isEmpty() ? "exit code " + returnValue : current.toString()));
+                } else if (imageStatus != 0) {
+                    errors.put(images.get(i), messages.getOrDefault(i, new ArrayList<>()).toString());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(argfile);
+        }
+        return errors;
+    }
+
+}
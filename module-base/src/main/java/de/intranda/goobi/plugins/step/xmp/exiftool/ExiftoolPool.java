@@ -0,0 +1,156 @@
+package de.intranda.goobi.plugins.step.xmp.exiftool;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Pool of long running exiftool processes. There is one pool for each command, it is shared by all step executions in the JVM. Processes are
+ * started on demand, stopped after they were unused for the configured idle time and replaced, if they crashed.
+ */
+@Log4j2
+public class ExiftoolPool {
+
+    private static final Map<String, ExiftoolPool> pools = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService evictionService = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "exiftool-pool-eviction");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        evictionService.scheduleWithFixedDelay(() -> pools.values().forEach(ExiftoolPool::evictIdleProcesses), 30, 30, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> pools.values().forEach(ExiftoolPool::shutdown), "exiftool-pool-shutdown"));
+    }
+
+    private final String command;
+
+    private final ResizableSemaphore permits;
+
+    private final ConcurrentLinkedDeque<ExiftoolProcess> idleProcesses = new ConcurrentLinkedDeque<>();
+
+    private int poolSize;
+
+    private volatile long idleTimeout;
+
+    private ExiftoolPool(String command, int poolSize, long idleTimeout) {
+        this.command = command;
+        this.poolSize = poolSize;
+        this.idleTimeout = idleTimeout;
+        permits = new ResizableSemaphore(poolSize);
+    }
+
+    /**
+     * Get the pool for the given command. If the pool already exists, the pool size and idle timeout are updated to the given values
+     *
+     * @param command path to exiftool
+     * @param poolSize maximum number of running processes
+     * @param idleTimeout time in seconds after which an unused process gets stopped
+     * @return the shared pool
+     */
+    public static ExiftoolPool getInstance(String command, int poolSize, long idleTimeout) {
+        int size = Math.max(1, poolSize);
+        ExiftoolPool pool = pools.computeIfAbsent(command, c -> new ExiftoolPool(c, size, idleTimeout));
+        pool.configure(size, idleTimeout);
+        return pool;
+    }
+
+    private synchronized void configure(int newSize, long newIdleTimeout) {
+        idleTimeout = newIdleTimeout;
+        if (newSize > poolSize) {
+            permits.release(newSize - poolSize);
+        } else if (newSize < poolSize) {
+            permits.reducePermits(poolSize - newSize);
+        }
+        poolSize = newSize;
+    }
+
+    /**
+     * Run a job on one of the pooled processes. If the process crashed, it gets replaced and the job is repeated once on the new process.
+     *
+     * @param arguments arguments of the job
+     * @return result of the job
+     * @throws IOException if the job could not be executed
+     * @throws InterruptedException if the thread was interrupted while waiting for a free process
+     */
+    public ExiftoolResult execute(List<String> arguments) throws IOException, InterruptedException {
+        permits.acquire();
+        ExiftoolProcess process = null;
+        try {
+            process = borrowProcess();
+            try {
+                return process.execute(arguments);
+            } catch (IOException e) {
+                log.warn("XMP Plugin: exiftool process crashed, restart it: " + e.getMessage());
+                process.close();
+                process = new ExiftoolProcess(command);
+                return process.execute(arguments);
+            }
+        } finally {
+            if (process != null) {
+                if (process.isAlive()) {
+                    idleProcesses.addFirst(process);
+                } else {
+                    process.close();
+                }
+            }
+            permits.release();
+        }
+    }
+
+    private ExiftoolProcess borrowProcess() throws IOException {
+        ExiftoolProcess process;
+        while ((process = idleProcesses.pollFirst()) != null) {
+            if (process.isAlive()) {
+                return process;
+            }
+            process.close();
+        }
+        return new ExiftoolProcess(command);
+    }
+
+    private void evictIdleProcesses() {
+        long now = System.currentTimeMillis();
+        Iterator<ExiftoolProcess> iterator = idleProcesses.descendingIterator();
+        while (iterator.hasNext()) {
+            ExiftoolProcess process = iterator.next();
+            if (!process.isAlive() || now - process.getLastUsed() > TimeUnit.SECONDS.toMillis(idleTimeout)) {
+                if (idleProcesses.removeLastOccurrence(process)) {
+                    process.close();
+                }
+            }
+        }
+    }
+
+    private void shutdown() {
+        ExiftoolProcess process;
+        while ((process = idleProcesses.pollFirst()) != null) {
+            process.close();
+        }
+    }
+
+    private static class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 6335049262232950165L;
+
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+}
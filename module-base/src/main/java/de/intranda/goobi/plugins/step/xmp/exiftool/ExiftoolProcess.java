@@ -0,0 +1,192 @@
+package de.intranda.goobi.plugins.step.xmp.exiftool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * A single exiftool process started with '-stay_open True -@ -'. The arguments of each job are written to stdin and finished with '-executeNUM',
+ * the process answers with '{readyNUM}' and waits for the next job. An instance must be used by one thread at a time.
+ */
+@Log4j2
+public class ExiftoolProcess {
+
+    private static final String STATUS_PREFIX = "XMP_STATUS=";
+
+    // maximum time to wait for the end of the error stream after a job was finished
+    private static final long STDERR_TIMEOUT = 30;
+
+    // maximum time in seconds to wait for the answer of a job, e.g. if a read from the storage stalls
+    private static final long JOB_TIMEOUT = 600;
+
+    // marks the end of stdout, compared by identity
+    private static final String END_OF_STREAM = new String("EOF");
+
+    private static final AtomicInteger jobCounter = new AtomicInteger();
+
+    private final Process process;
+
+    private final BufferedWriter stdIn;
+
+    private final BlockingQueue<String> stdOut = new LinkedBlockingQueue<>();
+
+    private final BlockingQueue<String> stdErr = new LinkedBlockingQueue<>();
+
+    // set if the process was killed after a timeout
+    private volatile boolean broken;
+
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    public ExiftoolProcess(String command) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(Arrays.asList(command, "-stay_open", "True", "-@", "-"));
+        process = builder.start();
+        stdIn = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+
+        // both streams are read by their own threads, so a job can be aborted if exiftool does not answer in time
+        Thread outputReader = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    stdOut.add(line);
+                }
+            } catch (IOException e) {
+                log.trace(e);
+            } finally {
+                stdOut.add(END_OF_STREAM);
+            }
+        }, "exiftool-stdout-" + process.pid());
+        outputReader.setDaemon(true);
+        outputReader.start();
+
+        // drain the error stream continuously, otherwise exiftool blocks when the pipe buffer is full
+        Thread errorReader = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    stdErr.add(line);
+                }
+            } catch (IOException e) {
+                log.trace(e);
+            }
+        }, "exiftool-stderr-" + process.pid());
+        errorReader.setDaemon(true);
+        errorReader.start();
+        log.debug("XMP Plugin: started exiftool process " + process.pid());
+    }
+
+    /**
+     * Run a single job. The arguments are the same as they are used for a call of the command on the command line.
+     *
+     * @param arguments list of arguments
+     * @return the result with exit status and output of the job
+     * @throws IOException if the process died, cannot be accessed or did not answer in time. In the last case the process is killed
+     */
+    public ExiftoolResult execute(List<String> arguments) throws IOException, InterruptedException {
+        lastUsed = System.currentTimeMillis();
+        int jobId = jobCounter.incrementAndGet();
+        String readyMarker = "{ready" + jobId + "}";
+
+        for (String argument : arguments) {
+            stdIn.write(ExiftoolArguments.toArgfileLine(argument));
+            stdIn.newLine();
+        }
+        // report the exit status on stdout and mark the end of the job on stderr
+        stdIn.write("-echo3");
+        stdIn.newLine();
+        stdIn.write(STATUS_PREFIX + "${status}");
+        stdIn.newLine();
+        stdIn.write("-echo4");
+        stdIn.newLine();
+        stdIn.write(readyMarker);
+        stdIn.newLine();
+        stdIn.write("-execute" + jobId);
+        stdIn.newLine();
+        stdIn.flush();
+
+        ExiftoolResult result = new ExiftoolResult();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(JOB_TIMEOUT);
+        String line;
+        while ((line = stdOut.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != END_OF_STREAM) {
+            if (line == null) {
+                // the process hangs, it cannot be used anymore
+                broken = true;
+                process.destroyForcibly();
+                throw new IOException("exiftool process " + process.pid() + " did not answer within " + JOB_TIMEOUT + " seconds");
+            } else if (line.equals(readyMarker)) {
+                break;
+            } else if (line.startsWith(STATUS_PREFIX)) {
+                result.setStatus(parseStatus(line.substring(STATUS_PREFIX.length())));
+            } else {
+                result.getStdOut().add(line);
+            }
+        }
+        if (line == END_OF_STREAM) {
+            throw new IOException("exiftool process " + process.pid() + " terminated unexpectedly");
+        }
+
+        while ((line = stdErr.poll(STDERR_TIMEOUT, TimeUnit.SECONDS)) != null) {
+            if (line.equals(readyMarker)) {
+                break;
+            }
+            // skip markers of previous jobs that timed out
+            if (!line.startsWith("{ready")) {
+                result.getStdErr().add(line);
+            }
+        }
+        lastUsed = System.currentTimeMillis();
+        return result;
+    }
+
+    private int parseStatus(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            // exiftool too old to know ${status}
+            return 0;
+        }
+    }
+
+    public boolean isAlive() {
+        return !broken && process.isAlive();
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Ask exiftool to terminate and kill the process, if it does not stop in time
+     */
+    public void close() {
+        try {
+            if (process.isAlive()) {
+                stdIn.write("-stay_open");
+                stdIn.newLine();
+                stdIn.write("False");
+                stdIn.newLine();
+                stdIn.flush();
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            }
+        } catch (IOException e) {
+            process.destroyForcibly();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+        log.debug("XMP Plugin: stopped exiftool process " + process.pid());
+    }
+
+}
@@ -0,0 +1,18 @@
+package de.intranda.goobi.plugins.step.xmp.exiftool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Data;
+
+@Data
+public class ExiftoolResult {
+
+    // exit status reported by exiftool for the executed job
+    private int status;
+
+    private List<String> stdOut = new ArrayList<>();
+
+    private List<String> stdErr = new ArrayList<>();
+
+}
@@ -0,0 +1,54 @@
+package de.intranda.goobi.plugins.step.xmp.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe histogram with fixed buckets for latencies in milliseconds
+ */
+public class Histogram {
+
+    // upper bounds of the buckets in milliseconds, the last bucket contains all larger values
+    private static final long[] BOUNDS = { 10, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+
+    public void record(long millis) {
+        int bucket = 0;
+        while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+    }
+
+    /**
+     * @return number of values in each bucket
+     */
+    public long[] getCounts() {
+        long[] result = new long[counts.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the buckets and their counts, e.g. "<=10ms: 5, <=50ms: 12, ..."
+     */
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < counts.length(); i++) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(i < BOUNDS.length ? "<=" + BOUNDS[i] + "ms" : ">" + BOUNDS[BOUNDS.length - 1] + "ms").append(": ").append(counts.get(i));
+        }
+        return text.toString();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package de.intranda.goobi.plugins.step.xmp.metrics;
+
+/**
+ * The phases of a run that are timed
+ */
+public enum Phase {
+
+    READ_METADATA("read METS file"),
+    LIST_IMAGES("list images"),
+    EVALUATE("build field values"),
+    DOWNLOAD("download"),
+    IO_WAIT("wait for storage"),
+    WRITE("write images"),
+    UPLOAD("upload");
+
+    private final String label;
+
+    private Phase(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+}
@@ -0,0 +1,162 @@
+package de.intranda.goobi.plugins.step.xmp.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a single run. All values are added to the JVM wide {@link XmpMetrics} as well. The methods can be called by several threads
+ */
+public class RunMetrics {
+
+    private final XmpMetrics global = XmpMetrics.getInstance();
+
+    private final Map<Phase, LongAdder> phaseNanos = new EnumMap<>(Phase.class);
+    private final LongAdder imagesWritten = new LongAdder();
+    private final LongAdder writeFailures = new LongAdder();
+    private final LongAdder imagesSkipped = new LongAdder();
+    private final LongAdder bytesDownloaded = new LongAdder();
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final Histogram writeLatency = new Histogram();
+    // number of images of all folders, used for the progress
+    private final LongAdder totalImages = new LongAdder();
+    private final long startNanos = System.nanoTime();
+    // name of the run, shown in the list of running jobs
+    private String name;
+
+    public RunMetrics() {
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new LongAdder());
+        }
+    }
+
+    /**
+     * Add the run to the running jobs of the JVM wide metrics
+     *
+     * @param name name of the run, e.g. process and step
+     */
+    public void start(String name) {
+        this.name = name;
+        global.addRunning(this);
+    }
+
+    /**
+     * Add the duration of a phase
+     *
+     * @param phase the phase
+     * @param startNanos start time, taken from {@link System#nanoTime()}
+     */
+    public void addTime(Phase phase, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        phaseNanos.get(phase).add(nanos);
+        global.addTime(phase, nanos);
+    }
+
+    /**
+     * Add a written image
+     *
+     * @param nanos time needed to write the image
+     * @param failed true, if the image could not be written
+     */
+    public void addWrite(long nanos, boolean failed) {
+        imagesWritten.increment();
+        if (failed) {
+            writeFailures.increment();
+        }
+        writeLatency.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+        global.addWrite(nanos, failed);
+    }
+
+    /**
+     * Add the images of a folder to the total number of images
+     *
+     * @param count number of images
+     */
+    public void addTotal(int count) {
+        totalImages.add(count);
+    }
+
+    public void addSkipped(int count) {
+        imagesSkipped.add(count);
+        global.addSkipped(count);
+    }
+
+    public void addDownloaded(long bytes) {
+        bytesDownloaded.add(bytes);
+        global.addDownloaded(bytes);
+    }
+
+    public void addUploaded(long bytes) {
+        bytesUploaded.add(bytes);
+        global.addUploaded(bytes);
+    }
+
+    /**
+     * Finish the run
+     *
+     * @param success true, if the run was successful
+     */
+    public void finish(boolean success) {
+        global.removeRunning(this);
+        global.addRun(success);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of finished images, the total number and the estimated remaining time as text
+     */
+    public String getProgress() {
+        long done = imagesWritten.sum() + imagesSkipped.sum();
+        long total = totalImages.sum();
+        StringBuilder progress = new StringBuilder();
+        progress.append(done).append(" of ").append(total).append(" images");
+        if (total > 0) {
+            progress.append(" (").append(done * 100 / total).append(" %)");
+        }
+        if (done > 0 && total > done) {
+            // assume the remaining images take as long as the finished ones
+            long elapsed = System.nanoTime() - startNanos;
+            long remaining = elapsed / done * (total - done);
+            progress.append(", ETA ").append(formatDuration(TimeUnit.NANOSECONDS.toSeconds(remaining)));
+        }
+        return progress.toString();
+    }
+
+    private static String formatDuration(long seconds) {
+        if (seconds < 60) {
+            return seconds + " s";
+        } else if (seconds < 3600) {
+            return seconds / 60 + " min";
+        }
+        return seconds / 3600 + " h " + seconds % 3600 / 60 + " min";
+    }
+
+    /**
+     * @return the totals of the run as text for the journal
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(phaseNanos.get(phase).sum());
+            summary.append(phase.getLabel()).append(": ").append(millis).append(" ms, ");
+        }
+        summary.append("images written: ")
+                .append(imagesWritten.sum())
+                .append(", failures: ")
+                .append(writeFailures.sum())
+                .append(", skipped: ")
+                .append(imagesSkipped.sum())
+                .append(", bytes downloaded: ")
+                .append(bytesDownloaded.sum())
+                .append(", bytes uploaded: ")
+                .append(bytesUploaded.sum())
+                .append(", write latency: ")
+                .append(writeLatency.format());
+        return summary.toString();
+    }
+
+}
@@ -0,0 +1,211 @@
+package de.intranda.goobi.plugins.step.xmp.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * JVM wide metrics of all runs, registered as MBean de.intranda.goobi.plugins.step.xmp:type=XmpMetrics
+ */
+@Log4j2
+public class XmpMetrics implements XmpMetricsMBean {
+
+    private static final String OBJECT_NAME = "de.intranda.goobi.plugins.step.xmp:type=XmpMetrics";
+
+    private static final XmpMetrics INSTANCE = new XmpMetrics();
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder failedRuns = new LongAdder();
+    private final Map<Phase, LongAdder> phaseNanos = new EnumMap<>(Phase.class);
+    private final LongAdder imagesWritten = new LongAdder();
+    private final LongAdder writeFailures = new LongAdder();
+    private final LongAdder imagesSkipped = new LongAdder();
+    private final LongAdder bytesDownloaded = new LongAdder();
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final Histogram writeLatency = new Histogram();
+    private final Set<RunMetrics> running = ConcurrentHashMap.newKeySet();
+
+    static {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // the plugin may have been loaded again by a new class loader
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(INSTANCE, name);
+        } catch (JMException | SecurityException e) {
+            log.warn("XMP Plugin: cannot register metrics MBean", e);
+        }
+    }
+
+    private XmpMetrics() {
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new LongAdder());
+        }
+    }
+
+    public static XmpMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    void addRun(boolean success) {
+        runs.increment();
+        if (!success) {
+            failedRuns.increment();
+        }
+    }
+
+    void addRunning(RunMetrics run) {
+        running.add(run);
+    }
+
+    void removeRunning(RunMetrics run) {
+        running.remove(run);
+    }
+
+    void addTime(Phase phase, long nanos) {
+        phaseNanos.get(phase).add(nanos);
+    }
+
+    void addWrite(long nanos, boolean failed) {
+        imagesWritten.increment();
+        if (failed) {
+            writeFailures.increment();
+        }
+        writeLatency.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    void addSkipped(int count) {
+        imagesSkipped.add(count);
+    }
+
+    void addDownloaded(long bytes) {
+        bytesDownloaded.add(bytes);
+    }
+
+    void addUploaded(long bytes) {
+        bytesUploaded.add(bytes);
+    }
+
+    private long getMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(phaseNanos.get(phase).sum());
+    }
+
+    @Override
+    public long getRuns() {
+        return runs.sum();
+    }
+
+    @Override
+    public long getFailedRuns() {
+        return failedRuns.sum();
+    }
+
+    @Override
+    public long getReadMetadataTimeMillis() {
+        return getMillis(Phase.READ_METADATA);
+    }
+
+    @Override
+    public long getListImagesTimeMillis() {
+        return getMillis(Phase.LIST_IMAGES);
+    }
+
+    @Override
+    public long getEvaluateTimeMillis() {
+        return getMillis(Phase.EVALUATE);
+    }
+
+    @Override
+    public long getDownloadTimeMillis() {
+        return getMillis(Phase.DOWNLOAD);
+    }
+
+    @Override
+    public long getIoWaitTimeMillis() {
+        return getMillis(Phase.IO_WAIT);
+    }
+
+    @Override
+    public long getWriteTimeMillis() {
+        return getMillis(Phase.WRITE);
+    }
+
+    @Override
+    public long getUploadTimeMillis() {
+        return getMillis(Phase.UPLOAD);
+    }
+
+    @Override
+    public long getImagesWritten() {
+        return imagesWritten.sum();
+    }
+
+    @Override
+    public long getWriteFailures() {
+        return writeFailures.sum();
+    }
+
+    @Override
+    public long getImagesSkipped() {
+        return imagesSkipped.sum();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return bytesUploaded.sum();
+    }
+
+    @Override
+    public long[] getWriteLatencyCounts() {
+        return writeLatency.getCounts();
+    }
+
+    @Override
+    public String getWriteLatencyHistogram() {
+        return writeLatency.format();
+    }
+
+    @Override
+    public String[] getRunningJobs() {
+        List<String> jobs = new ArrayList<>();
+        for (RunMetrics run : running) {
+            jobs.add(run.getName() + ": " + run.getProgress());
+        }
+        return jobs.toArray(new String[0]);
+    }
+
+    @Override
+    public void reset() {
+        runs.reset();
+        failedRuns.reset();
+        for (LongAdder adder : phaseNanos.values()) {
+            adder.reset();
+        }
+        imagesWritten.reset();
+        writeFailures.reset();
+        imagesSkipped.reset();
+        bytesDownloaded.reset();
+        bytesUploaded.reset();
+        writeLatency.reset();
+    }
+
+}
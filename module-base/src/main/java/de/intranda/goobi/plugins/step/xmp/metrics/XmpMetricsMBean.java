@@ -0,0 +1,50 @@
+package de.intranda.goobi.plugins.step.xmp.metrics;
+
+/**
+ * Management interface of the plugin metrics. All times are the sum over all runs in milliseconds
+ */
+public interface XmpMetricsMBean {
+
+    public long getRuns();
+
+    public long getFailedRuns();
+
+    public long getReadMetadataTimeMillis();
+
+    public long getListImagesTimeMillis();
+
+    public long getEvaluateTimeMillis();
+
+    public long getDownloadTimeMillis();
+
+    public long getIoWaitTimeMillis();
+
+    public long getWriteTimeMillis();
+
+    public long getUploadTimeMillis();
+
+    public long getImagesWritten();
+
+    public long getWriteFailures();
+
+    public long getImagesSkipped();
+
+    public long getBytesDownloaded();
+
+    public long getBytesUploaded();
+
+    /**
+     * @return number of written images in each latency bucket
+     */
+    public long[] getWriteLatencyCounts();
+
+    public String getWriteLatencyHistogram();
+
+    /**
+     * @return name and progress of each run that is currently executed
+     */
+    public String[] getRunningJobs();
+
+    public void reset();
+
+}
@@ -0,0 +1,41 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import de.intranda.goobi.plugins.step.xmp.exiftool.ExiftoolBatch;
+
+/**
+ * Writes several images with a single call of exiftool, using a generated argument file
+ */
+public class ExiftoolBatchWriter extends ExiftoolWriter {
+
+    private final int batchSize;
+
+    /**
+     * @param command path to exiftool
+     * @param parameter configured parameter list
+     * @param batchSize number of images per call, 0 means unlimited
+     */
+    public ExiftoolBatchWriter(String command, List<String> parameter, int batchSize) {
+        super(command, parameter);
+        this.batchSize = batchSize > 0 ? batchSize : Integer.MAX_VALUE;
+    }
+
+    @Override
+    public Map<Path, String> write(List<XmpJob> jobs) throws IOException, InterruptedException {
+        ExiftoolBatch batch = new ExiftoolBatch(command);
+        for (XmpJob job : jobs) {
+            batch.add(job.getImage(), createParameterList(job));
+        }
+        return batch.execute();
+    }
+
+    @Override
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+}
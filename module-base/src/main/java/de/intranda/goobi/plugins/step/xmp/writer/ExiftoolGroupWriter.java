@@ -0,0 +1,69 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.sub.goobi.helper.ShellScript;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Starts the configured command once for all images that get the same fields. If the command fails for a group, the images of the group are written
+ * one by one to find out which of them failed
+ */
+@Log4j2
+public class ExiftoolGroupWriter extends ExiftoolWriter {
+
+    private final int groupSize;
+
+    /**
+     * @param command path to exiftool
+     * @param parameter configured parameter list
+     * @param groupSize maximum number of images per call
+     */
+    public ExiftoolGroupWriter(String command, List<String> parameter, int groupSize) {
+        super(command, parameter);
+        this.groupSize = Math.max(1, groupSize);
+    }
+
+    @Override
+    public Map<Path, String> write(List<XmpJob> jobs) throws IOException, InterruptedException {
+        Map<List<Map.Entry<String, String>>, List<Path>> groups = new LinkedHashMap<>();
+        for (XmpJob job : jobs) {
+            groups.computeIfAbsent(job.getFields(), k -> new ArrayList<>()).add(job.getImage());
+        }
+        Map<Path, String> errors = new HashMap<>();
+        for (Map.Entry<List<Map.Entry<String, String>>, List<Path>> group : groups.entrySet()) {
+            List<Path> images = group.getValue();
+            ShellScript s = new ShellScript(Paths.get(command));
+            int returnValue = s.run(createParameterList(group.getKey(), images));
+            log.debug("XMP Plugin: return code for command '" + s.getCommandString() + "' is " + returnValue);
+            if (returnValue == 0) {
+                continue;
+            }
+            if (images.size() == 1) {
+                errors.put(images.get(0), s.getStdErr().toString());
+                continue;
+            }
+            log.debug("XMP Plugin: writing a group of " + images.size() + " images failed, write them one by one");
+            for (Path image : images) {
+                ShellScript single = new ShellScript(Paths.get(command));
+                if (single.run(createParameterList(new XmpJob(image, group.getKey()))) != 0) {
+                    errors.put(image, single.getStdErr().toString());
+                }
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public int getBatchSize() {
+        return groupSize;
+    }
+
+}
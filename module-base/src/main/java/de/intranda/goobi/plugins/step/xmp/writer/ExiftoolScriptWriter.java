@@ -0,0 +1,39 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.sub.goobi.helper.ShellScript;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Starts the configured command once for each image
+ */
+@Log4j2
+public class ExiftoolScriptWriter extends ExiftoolWriter {
+
+    public ExiftoolScriptWriter(String command, List<String> parameter) {
+        super(command, parameter);
+    }
+
+    @Override
+    public Map<Path, String> write(List<XmpJob> jobs) throws IOException, InterruptedException {
+        Map<Path, String> errors = new HashMap<>();
+        for (XmpJob job : jobs) {
+            // run script for current image
+            ShellScript s = new ShellScript(Paths.get(command));
+            int returnValue = s.run(createParameterList(job));
+            log.debug("XMP Plugin: return code for command '" + s.getCommandString() + "' is " + returnValue);
+
+            if (returnValue != 0) {
+                errors.put(job.getImage(), s.getStdErr().toString());
+            }
+        }
+        return errors;
+    }
+
+}
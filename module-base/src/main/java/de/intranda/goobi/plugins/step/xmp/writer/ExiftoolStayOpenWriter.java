@@ -0,0 +1,39 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.intranda.goobi.plugins.step.xmp.exiftool.ExiftoolPool;
+import de.intranda.goobi.plugins.step.xmp.exiftool.ExiftoolResult;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Sends each image as a job to one of the running exiftool processes of the shared pool
+ */
+@Log4j2
+public class ExiftoolStayOpenWriter extends ExiftoolWriter {
+
+    private final ExiftoolPool pool;
+
+    public ExiftoolStayOpenWriter(String command, List<String> parameter, int poolSize, long idleTimeout) {
+        super(command, parameter);
+        pool = ExiftoolPool.getInstance(command, poolSize, idleTimeout);
+    }
+
+    @Override
+    public Map<Path, String> write(List<XmpJob> jobs) throws IOException, InterruptedException {
+        Map<Path, String> errors = new HashMap<>();
+        for (XmpJob job : jobs) {
+            ExiftoolResult result = pool.execute(createParameterList(job));
+            log.debug("XMP Plugin: exiftool status for " + job.getImage() + " is " + result.getStatus());
+            if (result.getStatus() != 0) {
+                errors.put(job.getImage(), result.getStdErr().toString());
+            }
+        }
+        return errors;
+    }
+
+}
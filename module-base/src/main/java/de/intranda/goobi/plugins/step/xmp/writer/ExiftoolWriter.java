@@ -0,0 +1,66 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class for all writers that call the configured command with the configured parameter list
+ */
+public abstract class ExiftoolWriter implements IXmpWriter {
+
+    protected final String command;
+
+    protected final List<String> parameter;
+
+    protected ExiftoolWriter(String command, List<String> parameter) {
+        this.command = command;
+        this.parameter = parameter;
+    }
+
+    /**
+     * The command can write any file
+     */
+    @Override
+    public boolean canWrite(XmpJob job) {
+        return true;
+    }
+
+    /**
+     * Replace {PARAM} and {FILE} in the configured parameter list with the field values and the current image
+     *
+     * @param job current job
+     * @return list of parameters for the command
+     */
+    protected List<String> createParameterList(XmpJob job) {
+        return createParameterList(job.getFields(), Collections.singletonList(job.getImage()));
+    }
+
+    /**
+     * Replace {PARAM} and {FILE} in the configured parameter list with the field values and a list of images
+     *
+     * @param fields the field values
+     * @param images the images, all of them are added in place of {FILE}
+     * @return list of parameters for the command
+     */
+    protected List<String> createParameterList(List<Map.Entry<String, String>> fields, List<Path> images) {
+        List<String> parameterList = new ArrayList<>();
+        for (String tok : parameter) {
+            if ("{PARAM}".equals(tok)) {
+                for (Map.Entry<String, String> field : fields) {
+                    parameterList.add(field.getKey() + "=" + field.getValue());
+                }
+            } else if ("{FILE}".equals(tok)) {
+                for (Path image : images) {
+                    parameterList.add(image.toString());
+                }
+            } else {
+                parameterList.add(tok);
+            }
+        }
+        return parameterList;
+    }
+
+}
@@ -0,0 +1,49 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+public interface IXmpWriter {
+
+    /**
+     * Check if the fields of the job can be written into the image by this writer
+     *
+     * @param job the job to check
+     * @return true, if the writer can handle the job
+     */
+    public boolean canWrite(XmpJob job);
+
+    /**
+     * Write the fields of each job into its image
+     *
+     * @param jobs list of jobs
+     * @return map with the error message of each image that could not be written, empty if all images were written
+     * @throws IOException if the writer failed completely
+     * @throws InterruptedException
+     */
+    public Map<Path, String> write(List<XmpJob> jobs) throws IOException, InterruptedException;
+
+    /**
+     * Number of jobs the writer handles with a single call. Writers with a value larger than 1 get the jobs collected
+     *
+     * @return number of jobs per call
+     */
+    public default int getBatchSize() {
+        return 1;
+    }
+
+    /**
+     * Number of bytes the writer writes into the storage for the job, used to limit the write rate. By default the whole image is rewritten
+     *
+     * @param job the job
+     * @return the number of bytes
+     * @throws IOException if the size of the image cannot be read
+     */
+    public default long getWrittenBytes(XmpJob job) throws IOException {
+        return Files.size(job.getImage());
+    }
+
+}
@@ -0,0 +1,163 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Reads and writes the XMP packet of a JPEG file. The packet is stored in an APP1 segment starting with the XMP namespace.
+ */
+public class JpegXmpEmbedder {
+
+    private static final byte[] XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0".getBytes(StandardCharsets.US_ASCII);
+
+    // segment length is stored in two bytes and includes the length field itself
+    public static final int MAX_PACKET_SIZE = 0xFFFF - 2 - XMP_HEADER.length;
+
+    private static final int SOI = 0xD8;
+    private static final int SOS = 0xDA;
+    private static final int EOI = 0xD9;
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+
+    private JpegXmpEmbedder() {
+    }
+
+    /**
+     * Read the existing packet
+     *
+     * @param image the jpeg file
+     * @return the packet or null, if the file has no XMP segment
+     * @throws IOException if the file is not a valid jpeg file
+     */
+    public static byte[] read(Path image) throws IOException {
+        byte[] data = Files.readAllBytes(image);
+        int[] segment = findXmpSegment(data);
+        if (segment == null) {
+            return null;
+        }
+        return Arrays.copyOfRange(data, segment[0] + 4 + XMP_HEADER.length, segment[1]);
+    }
+
+    /**
+     * Write the packet into the file. An existing XMP segment is replaced, otherwise a new segment is added after the JFIF and Exif segments. The
+     * file is written into a temporary file first and moved to the original location afterwards.
+     *
+     * @param image the jpeg file
+     * @param packet the new packet
+     * @throws IOException if the file is not a valid jpeg file or the packet is too large
+     */
+    public static void write(Path image, byte[] packet) throws IOException {
+        if (packet.length > MAX_PACKET_SIZE) {
+            throw new IOException("XMP packet is too large for a JPEG APP1 segment: " + packet.length + " bytes");
+        }
+        byte[] data = Files.readAllBytes(image);
+        int[] segment = findXmpSegment(data);
+        int start;
+        int end;
+        if (segment != null) {
+            start = segment[0];
+            end = segment[1];
+        } else {
+            start = findInsertPosition(data);
+            end = start;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + packet.length + 64);
+        out.write(data, 0, start);
+        int length = 2 + XMP_HEADER.length + packet.length;
+        out.write(0xFF);
+        out.write(APP1);
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+        out.write(XMP_HEADER);
+        out.write(packet);
+        out.write(data, end, data.length - end);
+
+        Path temp = Files.createTempFile(image.getParent(), image.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, out.toByteArray());
+            Files.move(temp, image, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Check the file signature
+     *
+     * @param header first bytes of the file
+     * @return true, if the file is a jpeg file
+     */
+    public static boolean isJpeg(byte[] header) {
+        return header.length >= 2 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == SOI;
+    }
+
+    /**
+     * @return start and end of the XMP segment, or null
+     */
+    private static int[] findXmpSegment(byte[] data) throws IOException {
+        int pos = 2;
+        checkSignature(data);
+        while (pos + 4 <= data.length) {
+            if ((data[pos] & 0xFF) != 0xFF) {
+                throw new IOException("Invalid JPEG segment at position " + pos);
+            }
+            int marker = data[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            if (marker == SOS || marker == EOI) {
+                return null;
+            }
+            int length = ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+            int end = pos + 2 + length;
+            if (end > data.length) {
+                throw new IOException("Invalid JPEG segment length at position " + pos);
+            }
+            if (marker == APP1 && startsWith(data, pos + 4, XMP_HEADER)) {
+                return new int[] { pos, end };
+            }
+            pos = end;
+        }
+        return null;
+    }
+
+    private static int findInsertPosition(byte[] data) throws IOException {
+        int pos = 2;
+        checkSignature(data);
+        while (pos + 4 <= data.length && (data[pos] & 0xFF) == 0xFF) {
+            int marker = data[pos + 1] & 0xFF;
+            if (marker != APP0 && marker != APP1) {
+                break;
+            }
+            int length = ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+            pos = pos + 2 + length;
+        }
+        return Math.min(pos, data.length);
+    }
+
+    private static void checkSignature(byte[] data) throws IOException {
+        if (!isJpeg(data)) {
+            throw new IOException("File is not a JPEG file");
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+        if (offset + prefix.length > data.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
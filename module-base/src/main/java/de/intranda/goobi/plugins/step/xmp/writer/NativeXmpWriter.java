@@ -0,0 +1,133 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Writes the XMP packet directly into JPEG and TIFF files, without calling an external command. If the packet of a JPEG file does not fit into a
+ * single APP1 segment after it was merged with the existing properties, the job is handed to the fallback writer, which supports extended XMP. If
+ * the configured command has parameters that change the written properties, no job is written natively.
+ */
+@Log4j2
+public class NativeXmpWriter implements IXmpWriter {
+
+    // rough upper limit for the values of a JPEG packet, leaves space for the packet structure and existing properties
+    private static final int MAX_JPEG_VALUE_SIZE = JpegXmpEmbedder.MAX_PACKET_SIZE / 2;
+
+    // writes the jobs that cannot be written natively, can be null
+    private final IXmpWriter fallbackWriter;
+
+    // false, if the configured parameters must be passed to exiftool
+    private final boolean supportedParameters;
+
+    /**
+     * @param parameter configured parameters of the command
+     * @param fallbackWriter writer for JPEG files whose packet gets too large, e.g. the exiftool writer. If null, these images fail
+     */
+    public NativeXmpWriter(List<String> parameter, IXmpWriter fallbackWriter) {
+        this.fallbackWriter = fallbackWriter;
+        supportedParameters = XmpPacket.isSupportedParameterList(parameter);
+        if (!supportedParameters) {
+            log.debug("XMP Plugin: the configured parameters " + parameter + " need exiftool, the native writer is not used");
+        }
+    }
+
+    @Override
+    public boolean canWrite(XmpJob job) {
+        if (!supportedParameters) {
+            return false;
+        }
+        String extension = getExtension(job.getImage());
+        if (!"jpg".equals(extension) && !"jpeg".equals(extension) && !"tif".equals(extension) && !"tiff".equals(extension)) {
+            return false;
+        }
+        if (!XmpPacket.isSupported(job.getFields())) {
+            return false;
+        }
+        byte[] header = readHeader(job.getImage());
+        if (TiffXmpEmbedder.isTiff(header)) {
+            return true;
+        }
+        if (JpegXmpEmbedder.isJpeg(header)) {
+            int size = 0;
+            for (Map.Entry<String, String> field : job.getFields()) {
+                size += field.getKey().length() + (field.getValue() == null ? 0 : field.getValue().length() * 3);
+            }
+            return size < MAX_JPEG_VALUE_SIZE;
+        }
+        return false;
+    }
+
+    @Override
+    public Map<Path, String> write(List<XmpJob> jobs) throws IOException, InterruptedException {
+        Map<Path, String> errors = new HashMap<>();
+        List<XmpJob> fallbackJobs = new ArrayList<>();
+        for (XmpJob job : jobs) {
+            Path image = job.getImage();
+            try {
+                byte[] header = readHeader(image);
+                if (TiffXmpEmbedder.isTiff(header)) {
+                    byte[] packet = XmpPacket.create(TiffXmpEmbedder.read(image), job.getFields());
+                    TiffXmpEmbedder.write(image, packet);
+                } else if (JpegXmpEmbedder.isJpeg(header)) {
+                    byte[] packet = XmpPacket.create(JpegXmpEmbedder.read(image), job.getFields());
+                    if (packet.length > JpegXmpEmbedder.MAX_PACKET_SIZE && fallbackWriter != null) {
+                        // the existing properties are too large for a single segment
+                        log.debug("XMP Plugin: xmp packet too large for " + image + ", use fallback writer");
+                        fallbackJobs.add(job);
+                        continue;
+                    }
+                    JpegXmpEmbedder.write(image, packet);
+                } else {
+                    errors.put(image, "unsupported file format");
+                }
+                log.debug("XMP Plugin: xmp packet written into " + image);
+            } catch (IOException e) {
+                log.error("XMP Plugin: cannot write xmp packet into " + image, e);
+                errors.put(image, e.getMessage());
+            }
+        }
+        if (!fallbackJobs.isEmpty()) {
+            errors.putAll(fallbackWriter.write(fallbackJobs));
+        }
+        return errors;
+    }
+
+    @Override
+    public long getWrittenBytes(XmpJob job) throws IOException {
+        if (TiffXmpEmbedder.isTiff(readHeader(job.getImage()))) {
+            // only the packet and a new IFD are appended, the image data is not rewritten
+            return XmpPacket.estimateSize(job.getFields()) + 4096;
+        }
+        return Files.size(job.getImage());
+    }
+
+    private static String getExtension(Path image) {
+        String name = image.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot == -1 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static byte[] readHeader(Path image) {
+        byte[] header = new byte[4];
+        try (InputStream in = Files.newInputStream(image)) {
+            int read = in.readNBytes(header, 0, header.length);
+            if (read < header.length) {
+                return new byte[0];
+            }
+        } catch (IOException e) {
+            return new byte[0];
+        }
+        return header;
+    }
+
+}
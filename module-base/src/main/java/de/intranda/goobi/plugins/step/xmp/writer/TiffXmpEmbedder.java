@@ -0,0 +1,382 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes the XMP packet of a TIFF or BigTIFF file. The packet is stored in tag 700 of the first IFD. If the new packet fits into the space
+ * of the existing packet, its padding is adjusted to the old length and the old packet is overwritten in place. Otherwise the packet and a copy of
+ * the first IFD containing the new tag are appended to the file and the header is changed to point to the new IFD. Image data and all other IFDs
+ * stay untouched, so only a few kilobytes are written, regardless of the size of the file.
+ */
+public class TiffXmpEmbedder {
+
+    public static final int TAG_XMP = 700;
+
+    private static final int TYPE_BYTE = 1;
+
+    private static final int CLASSIC_VERSION = 42;
+
+    private static final int BIGTIFF_VERSION = 43;
+
+    private static final byte[] PACKET_TRAILER = "<?xpacket end".getBytes(StandardCharsets.US_ASCII);
+
+    private TiffXmpEmbedder() {
+    }
+
+    /**
+     * Check the file signature. Classic TIFF and BigTIFF files are supported
+     *
+     * @param header first bytes of the file
+     * @return true, if the file is a TIFF file
+     */
+    public static boolean isTiff(byte[] header) {
+        if (header.length < 4) {
+            return false;
+        }
+        if (header[0] == 'I' && header[1] == 'I') {
+            return (header[2] == CLASSIC_VERSION || header[2] == BIGTIFF_VERSION) && header[3] == 0;
+        } else if (header[0] == 'M' && header[1] == 'M') {
+            return header[2] == 0 && (header[3] == CLASSIC_VERSION || header[3] == BIGTIFF_VERSION);
+        }
+        return false;
+    }
+
+    /**
+     * Read the existing packet
+     *
+     * @param image the tiff file
+     * @return the packet or null, if the first IFD has no tag 700
+     * @throws IOException if the file is not a valid tiff file
+     */
+    public static byte[] read(Path image) throws IOException {
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            Ifd ifd = readFirstIfd(channel);
+            ByteBuffer entry = ifd.findEntry(TAG_XMP);
+            if (entry == null) {
+                return null;
+            }
+            Format format = ifd.format;
+            long count = format.getOffset(entry, 4);
+            if (count > Integer.MAX_VALUE) {
+                throw new IOException("XMP packet is too large");
+            }
+            ByteBuffer packet = ByteBuffer.allocate((int) count);
+            if (count <= format.offsetSize) {
+                // small values are stored in the entry itself
+                packet.put(entry.array(), 4 + format.offsetSize, (int) count);
+            } else {
+                readFully(channel, packet, format.getOffset(entry, 4 + format.offsetSize));
+            }
+            return packet.array();
+        }
+    }
+
+    /**
+     * Write the packet into the file. If the packet fits into the space of the existing packet, the existing packet is overwritten. Otherwise the new
+     * data is appended and flushed to disk before the header is changed to point to it. If appending fails before the header was changed, the
+     * appended data is removed again and the file stays unchanged
+     *
+     * @param image the tiff file
+     * @param packet the new packet
+     * @throws IOException if the file is not a valid tiff file or a classic tiff file gets larger than 4 GB
+     */
+    public static void write(Path image, byte[] packet) throws IOException {
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Ifd ifd = readFirstIfd(channel);
+            if (!overwrite(channel, ifd, packet)) {
+                append(channel, ifd, packet);
+            }
+        }
+    }
+
+    /**
+     * Overwrite the existing packet, if the new packet fits into its space. The new packet gets the length of the existing packet, so the IFD is not
+     * changed
+     *
+     * @param channel channel of the file, opened for reading and writing
+     * @param ifd the first IFD
+     * @param packet the new packet
+     * @return true, if the packet was written, false if it must be appended
+     * @throws IOException
+     */
+    private static boolean overwrite(FileChannel channel, Ifd ifd, byte[] packet) throws IOException {
+        ByteBuffer entry = ifd.findEntry(TAG_XMP);
+        if (entry == null) {
+            return false;
+        }
+        Format format = ifd.format;
+        long count = format.getOffset(entry, 4);
+        // small values are stored in the entry itself, they are never large enough
+        if (count <= format.offsetSize || count > Integer.MAX_VALUE) {
+            return false;
+        }
+        byte[] resized = resizePadding(packet, (int) count);
+        if (resized == null) {
+            return false;
+        }
+        writeFully(channel, ByteBuffer.wrap(resized), format.getOffset(entry, 4 + format.offsetSize));
+        channel.force(false);
+        return true;
+    }
+
+    /**
+     * Change the padding of the packet, the whitespace in front of the packet trailer, so that the packet gets the given length. If the packet has no
+     * trailer, the whitespace at its end is used
+     *
+     * @param packet the packet
+     * @param length the new length
+     * @return the packet with the new length or null, if the packet is too large even without padding
+     */
+    static byte[] resizePadding(byte[] packet, int length) {
+        int trailer = lastIndexOf(packet, PACKET_TRAILER);
+        int contentEnd = trailer == -1 ? packet.length : trailer;
+        int paddingStart = contentEnd;
+        while (paddingStart > 0 && isWhitespace(packet[paddingStart - 1])) {
+            paddingStart--;
+        }
+        int tail = packet.length - contentEnd;
+        int padding = length - paddingStart - tail;
+        if (padding < 0) {
+            return null;
+        }
+        byte[] resized = new byte[length];
+        System.arraycopy(packet, 0, resized, 0, paddingStart);
+        // lines of 100 characters, like the padding of new packets
+        for (int i = 0; i < padding; i++) {
+            resized[paddingStart + i] = (byte) (i % 100 == 99 || i == padding - 1 ? '\n' : ' ');
+        }
+        System.arraycopy(packet, contentEnd, resized, paddingStart + padding, tail);
+        return resized;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static int lastIndexOf(byte[] data, byte[] pattern) {
+        for (int i = data.length - pattern.length; i >= 0; i--) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Append the packet and a new first IFD to the end of the file and let the header point to the new IFD
+     *
+     * @param channel channel of the file, opened for reading and writing
+     * @param ifd the first IFD
+     * @param packet the new packet
+     * @throws IOException
+     */
+    private static void append(FileChannel channel, Ifd ifd, byte[] packet) throws IOException {
+        Format format = ifd.format;
+
+        long originalSize = channel.size();
+        long packetOffset = align(originalSize);
+        long ifdOffset = align(packetOffset + packet.length);
+        boolean hasXmp = ifd.findEntry(TAG_XMP) != null;
+        int count = hasXmp ? ifd.count : ifd.count + 1;
+        int ifdSize = format.countSize + count * format.entrySize + format.offsetSize;
+        if (!format.big && ifdOffset + ifdSize > 0xFFFFFFFFL) {
+            throw new IOException("TIFF file would exceed 4 GB");
+        }
+
+        // entries must be sorted by tag number
+        ByteBuffer newIfd = ByteBuffer.allocate(ifdSize).order(format.order);
+        format.putEntryCount(newIfd, count);
+        boolean written = false;
+        for (int i = 0; i < ifd.count; i++) {
+            ByteBuffer entry = ifd.getEntry(i);
+            int tag = Short.toUnsignedInt(entry.getShort(0));
+            if (!written && tag >= TAG_XMP) {
+                putXmpEntry(newIfd, format, packet.length, packetOffset);
+                written = true;
+                if (tag == TAG_XMP) {
+                    continue;
+                }
+            }
+            newIfd.put(entry.array());
+        }
+        if (!written) {
+            putXmpEntry(newIfd, format, packet.length, packetOffset);
+        }
+        format.putOffset(newIfd, ifd.nextIfdOffset);
+        newIfd.flip();
+
+        try {
+            writeFully(channel, ByteBuffer.wrap(packet), packetOffset);
+            writeFully(channel, newIfd, ifdOffset);
+            // the new IFD must be stored before the header refers to it
+            channel.force(false);
+        } catch (IOException e) {
+            channel.truncate(originalSize);
+            throw e;
+        }
+        ByteBuffer header = ByteBuffer.allocate(format.offsetSize).order(format.order);
+        format.putOffset(header, ifdOffset);
+        header.flip();
+        writeFully(channel, header, format.headerOffsetPosition);
+        channel.force(false);
+    }
+
+    private static void putXmpEntry(ByteBuffer buffer, Format format, int length, long offset) {
+        buffer.putShort((short) TAG_XMP);
+        buffer.putShort((short) TYPE_BYTE);
+        format.putOffset(buffer, length);
+        format.putOffset(buffer, offset);
+    }
+
+    // IFDs and values must start on a word boundary
+    private static long align(long offset) {
+        return (offset & 1) == 0 ? offset : offset + 1;
+    }
+
+    private static Ifd readFirstIfd(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.limit(8);
+        readFully(channel, header, 0);
+        if (!isTiff(header.array())) {
+            throw new IOException("File is not a TIFF file");
+        }
+        ByteOrder order = header.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        header.order(order);
+        Format format;
+        long offset;
+        if (header.getShort(2) == BIGTIFF_VERSION) {
+            // BigTIFF: size of the offsets, a reserved field and the 8 byte offset of the first IFD
+            header.limit(16);
+            readFully(channel, header, 8);
+            if (header.getShort(4) != 8 || header.getShort(6) != 0) {
+                throw new IOException("Unsupported BigTIFF offset size");
+            }
+            format = new Format(order, true);
+            offset = header.getLong(8);
+        } else {
+            format = new Format(order, false);
+            offset = Integer.toUnsignedLong(header.getInt(4));
+        }
+
+        ByteBuffer countBuffer = ByteBuffer.allocate(format.countSize).order(order);
+        readFully(channel, countBuffer, offset);
+        long entryCount = format.getEntryCount(countBuffer);
+        if (entryCount > 0xFFFF) {
+            throw new IOException("Invalid number of IFD entries");
+        }
+        int count = (int) entryCount;
+        ByteBuffer entries = ByteBuffer.allocate(count * format.entrySize + format.offsetSize).order(order);
+        readFully(channel, entries, offset + format.countSize);
+        return new Ifd(format, count, entries, format.getOffset(entries, count * format.entrySize));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, pos);
+            if (read < 0) {
+                throw new IOException("Unexpected end of TIFF file");
+            }
+            pos += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+    }
+
+    /**
+     * Sizes of the structures, classic TIFF uses 4 byte offsets and 12 byte IFD entries, BigTIFF 8 byte offsets and 20 byte IFD entries
+     */
+    private static class Format {
+        private final ByteOrder order;
+        private final boolean big;
+        private final int offsetSize;
+        private final int countSize;
+        private final int entrySize;
+        private final long headerOffsetPosition;
+
+        private Format(ByteOrder order, boolean big) {
+            this.order = order;
+            this.big = big;
+            offsetSize = big ? 8 : 4;
+            countSize = big ? 8 : 2;
+            entrySize = big ? 20 : 12;
+            headerOffsetPosition = big ? 8 : 4;
+        }
+
+        /**
+         * Read the number of entries of an IFD
+         */
+        private long getEntryCount(ByteBuffer buffer) {
+            return big ? buffer.getLong(0) : Short.toUnsignedInt(buffer.getShort(0));
+        }
+
+        private void putEntryCount(ByteBuffer buffer, int count) {
+            if (big) {
+                buffer.putLong(count);
+            } else {
+                buffer.putShort((short) count);
+            }
+        }
+
+        /**
+         * Read an unsigned offset or value count
+         */
+        private long getOffset(ByteBuffer buffer, int index) {
+            return big ? buffer.getLong(index) : Integer.toUnsignedLong(buffer.getInt(index));
+        }
+
+        private void putOffset(ByteBuffer buffer, long value) {
+            if (big) {
+                buffer.putLong(value);
+            } else {
+                buffer.putInt((int) value);
+            }
+        }
+    }
+
+    private static class Ifd {
+        private final Format format;
+        private final int count;
+        private final ByteBuffer entries;
+        private final long nextIfdOffset;
+
+        private Ifd(Format format, int count, ByteBuffer entries, long nextIfdOffset) {
+            this.format = format;
+            this.count = count;
+            this.entries = entries;
+            this.nextIfdOffset = nextIfdOffset;
+        }
+
+        private ByteBuffer getEntry(int index) {
+            byte[] entry = new byte[format.entrySize];
+            System.arraycopy(entries.array(), index * format.entrySize, entry, 0, format.entrySize);
+            return ByteBuffer.wrap(entry).order(format.order);
+        }
+
+        private ByteBuffer findEntry(int tag) {
+            for (int i = 0; i < count; i++) {
+                ByteBuffer entry = getEntry(i);
+                if (Short.toUnsignedInt(entry.getShort(0)) == tag) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+}
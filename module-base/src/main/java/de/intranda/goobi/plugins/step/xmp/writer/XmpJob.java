@@ -0,0 +1,21 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Data;
+
+@Data
+public class XmpJob {
+
+    // image to write
+    private final Path image;
+
+    // configured xmp field names with their computed values, in the configured order
+    private final List<Map.Entry<String, String>> fields;
+
+    // sidecar file of the image, if null the default name is used
+    private Path sidecar;
+
+}
@@ -0,0 +1,354 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Serializes field values into an XMP packet. The field names use the exiftool syntax (e.g. '-xmp-dc:Creator'), only tags of a few well known
+ * namespaces are supported. If an existing packet is given, the configured properties are replaced and all other properties are kept.
+ */
+@Log4j2
+public class XmpPacket {
+
+    private static final String NS_X = "adobe:ns:meta/";
+    private static final String NS_RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+    private static final String NS_XML = "http://www.w3.org/XML/1998/namespace";
+
+    private static final String PACKET_BEGIN = "<?xpacket begin=\"\uFEFF\" id=\"W5M0MpCehiHzreSzNTczkc9d\"?>\n";
+    private static final String PACKET_END = "<?xpacket end=\"w\"?>";
+
+    // white space at the end of the packet, allows other tools to update the packet in place
+    private static final int PADDING = 2048;
+
+    // exiftool parameters that do not change the written properties, in lower case
+    private static final Set<String> NEUTRAL_PARAMETERS = new HashSet<>(Arrays.asList("{param}", "{file}", "-q", "-quiet", "-m",
+            "-ignoreminorerrors", "-overwrite_original", "-overwrite_original_in_place"));
+
+    private enum Kind {
+        SIMPLE,
+        BAG,
+        SEQ,
+        ALT
+    }
+
+    /**
+     * Namespace of the exiftool group
+     */
+    private static class Schema {
+        private final String prefix;
+        private final String uri;
+        private final Map<String, String> names = new HashMap<>();
+        private final Map<String, Kind> kinds = new HashMap<>();
+
+        private Schema(String prefix, String uri) {
+            this.prefix = prefix;
+            this.uri = uri;
+        }
+
+        private Schema add(Kind kind, String... properties) {
+            for (String property : properties) {
+                names.put(property.toLowerCase(Locale.ROOT), property);
+                kinds.put(property, kind);
+            }
+            return this;
+        }
+    }
+
+    private static final Map<String, Schema> schemas = new HashMap<>();
+
+    static {
+        schemas.put("dc", new Schema("dc", "http://purl.org/dc/elements/1.1/")
+                .add(Kind.BAG, "contributor", "language", "publisher", "relation", "subject", "type")
+                .add(Kind.SEQ, "creator", "date")
+                .add(Kind.ALT, "description", "rights", "title")
+                .add(Kind.SIMPLE, "coverage", "format", "identifier", "source"));
+        schemas.put("xmp", new Schema("xmp", "http://ns.adobe.com/xap/1.0/")
+                .add(Kind.BAG, "Identifier")
+                .add(Kind.SIMPLE, "BaseURL", "CreateDate", "CreatorTool", "Label", "MetadataDate", "ModifyDate", "Nickname", "Rating"));
+        schemas.put("xmprights", new Schema("xmpRights", "http://ns.adobe.com/xap/1.0/rights/")
+                .add(Kind.BAG, "Owner")
+                .add(Kind.ALT, "UsageTerms")
+                .add(Kind.SIMPLE, "Certificate", "Marked", "WebStatement"));
+        schemas.put("photoshop", new Schema("photoshop", "http://ns.adobe.com/photoshop/1.0/")
+                .add(Kind.BAG, "SupplementalCategories")
+                .add(Kind.SIMPLE, "AuthorsPosition", "CaptionWriter", "Category", "City", "Country", "Credit", "DateCreated", "Headline",
+                        "Instructions", "Source", "State", "TransmissionReference", "Urgency"));
+        schemas.put("iptccore", new Schema("Iptc4xmpCore", "http://iptc.org/std/Iptc4xmpCore/1.0/xmlns/")
+                .add(Kind.BAG, "Scene", "SubjectCode")
+                .add(Kind.SIMPLE, "CountryCode", "IntellectualGenre", "Location"));
+    }
+
+    /**
+     * A resolved property
+     */
+    private static class Property {
+        private Schema schema;
+        private String name;
+        private Kind kind;
+        private String value;
+    }
+
+    private XmpPacket() {
+    }
+
+    /**
+     * Check if all fields can be written without exiftool
+     *
+     * @param fields list of field names and values
+     * @return true, if all field names are known
+     */
+    public static boolean isSupported(List<Map.Entry<String, String>> fields) {
+        for (Map.Entry<String, String> field : fields) {
+            if (resolve(field.getKey()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the configured exiftool parameters can be ignored when the packet is written without exiftool. Other parameters, like static
+     * assignments, -P or -charset, would be lost
+     *
+     * @param parameter configured parameters of the command, can be null
+     * @return true, if all parameters are placeholders or options without influence on the written properties
+     */
+    public static boolean isSupportedParameterList(List<String> parameter) {
+        if (parameter == null) {
+            return true;
+        }
+        for (String value : parameter) {
+            if (!NEUTRAL_PARAMETERS.contains(value.trim().toLowerCase(Locale.ROOT))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estimate the size of a packet with the given fields, without the properties of an existing packet
+     *
+     * @param fields list of field names and values
+     * @return the estimated size in bytes
+     */
+    public static long estimateSize(List<Map.Entry<String, String>> fields) {
+        // envelope and padding
+        long size = PACKET_BEGIN.length() + PACKET_END.length() + PADDING + 512;
+        for (Map.Entry<String, String> field : fields) {
+            // element names and up to 3 bytes per character
+            size += 2 * field.getKey().length() + 64 + (field.getValue() == null ? 0 : 3L * field.getValue().length());
+        }
+        return size;
+    }
+
+    /**
+     * Create a packet with the given fields. Properties of an existing packet are kept, as long as they are not part of the field list
+     *
+     * @param existing the existing packet or null
+     * @param fields list of field names and values
+     * @return the serialized packet
+     * @throws IOException if a field name is not supported or the packet cannot be created
+     */
+    public static byte[] create(byte[] existing, List<Map.Entry<String, String>> fields) throws IOException {
+        List<Property> properties = new ArrayList<>();
+        for (Map.Entry<String, String> field : fields) {
+            Property property = resolve(field.getKey());
+            if (property == null) {
+                throw new IOException("Unsupported xmp field " + field.getKey());
+            }
+            property.value = field.getValue();
+            properties.add(property);
+        }
+        try {
+            DocumentBuilder builder = createDocumentBuilder();
+            Document doc = null;
+            if (existing != null && existing.length > 0) {
+                try {
+                    doc = builder.parse(new ByteArrayInputStream(existing));
+                } catch (SAXException e) {
+                    log.warn("XMP Plugin: existing xmp packet is invalid and gets replaced");
+                }
+            }
+            Element description = doc == null ? null : findDescription(doc);
+            if (description == null) {
+                doc = builder.newDocument();
+                Element xmpmeta = doc.createElementNS(NS_X, "x:xmpmeta");
+                doc.appendChild(xmpmeta);
+                Element rdf = doc.createElementNS(NS_RDF, "rdf:RDF");
+                xmpmeta.appendChild(rdf);
+                description = doc.createElementNS(NS_RDF, "rdf:Description");
+                description.setAttributeNS(NS_RDF, "rdf:about", "");
+                rdf.appendChild(description);
+            }
+            for (Property property : properties) {
+                removeProperty(doc, property);
+            }
+            for (Property property : properties) {
+                // exiftool deletes a tag, if the value is empty
+                if (property.value != null && !property.value.isEmpty()) {
+                    addProperty(doc, description, property);
+                }
+            }
+            return serialize(doc);
+        } catch (ParserConfigurationException | TransformerException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static Property resolve(String fieldName) {
+        String name = fieldName.startsWith("-") ? fieldName.substring(1) : fieldName;
+        int colon = name.indexOf(':');
+        if (colon == -1) {
+            return null;
+        }
+        String group = name.substring(0, colon).toLowerCase(Locale.ROOT);
+        if (!group.startsWith("xmp-")) {
+            return null;
+        }
+        Schema schema = schemas.get(group.substring(4));
+        if (schema == null) {
+            return null;
+        }
+        String propertyName = schema.names.get(name.substring(colon + 1).toLowerCase(Locale.ROOT));
+        if (propertyName == null) {
+            return null;
+        }
+        Property property = new Property();
+        property.schema = schema;
+        property.name = propertyName;
+        property.kind = schema.kinds.get(propertyName);
+        return property;
+    }
+
+    private static DocumentBuilder createDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        factory.setExpandEntityReferences(false);
+        return factory.newDocumentBuilder();
+    }
+
+    private static Element findDescription(Document doc) {
+        NodeList descriptions = doc.getElementsByTagNameNS(NS_RDF, "Description");
+        if (descriptions.getLength() == 0) {
+            return null;
+        }
+        return (Element) descriptions.item(0);
+    }
+
+    private static void removeProperty(Document doc, Property property) {
+        NodeList descriptions = doc.getElementsByTagNameNS(NS_RDF, "Description");
+        for (int i = 0; i < descriptions.getLength(); i++) {
+            Element description = (Element) descriptions.item(i);
+            if (description.hasAttributeNS(property.schema.uri, property.name)) {
+                description.removeAttributeNS(property.schema.uri, property.name);
+            }
+            Node child = description.getFirstChild();
+            while (child != null) {
+                Node next = child.getNextSibling();
+                if (child.getNodeType() == Node.ELEMENT_NODE && property.schema.uri.equals(child.getNamespaceURI())
+                        && property.name.equals(child.getLocalName())) {
+                    description.removeChild(child);
+                }
+                child = next;
+            }
+        }
+    }
+
+    private static void addProperty(Document doc, Element description, Property property) {
+        // the same field is configured twice: exiftool adds a further entry to lists and replaces other values
+        Element existing = null;
+        for (Node child = description.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && property.schema.uri.equals(child.getNamespaceURI())
+                    && property.name.equals(child.getLocalName())) {
+                existing = (Element) child;
+            }
+        }
+        if (existing != null && (property.kind == Kind.BAG || property.kind == Kind.SEQ)) {
+            Element item = doc.createElementNS(NS_RDF, "rdf:li");
+            item.setTextContent(property.value);
+            existing.getFirstChild().appendChild(item);
+            return;
+        } else if (existing != null) {
+            description.removeChild(existing);
+        }
+        String prefix = description.lookupPrefix(property.schema.uri);
+        if (prefix == null) {
+            prefix = property.schema.prefix;
+            description.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:" + prefix, property.schema.uri);
+        }
+        Element element = doc.createElementNS(property.schema.uri, prefix + ":" + property.name);
+        if (property.kind == Kind.SIMPLE) {
+            element.setTextContent(property.value);
+        } else {
+            String containerName = property.kind == Kind.BAG ? "rdf:Bag" : property.kind == Kind.SEQ ? "rdf:Seq" : "rdf:Alt";
+            Element container = doc.createElementNS(NS_RDF, containerName);
+            Element item = doc.createElementNS(NS_RDF, "rdf:li");
+            if (property.kind == Kind.ALT) {
+                item.setAttributeNS(NS_XML, "xml:lang", "x-default");
+            }
+            item.setTextContent(property.value);
+            container.appendChild(item);
+            element.appendChild(container);
+        }
+        description.appendChild(element);
+    }
+
+    private static byte[] serialize(Document doc) throws TransformerException, IOException {
+        // remove old packet wrapper, it gets added again below
+        Node child = doc.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.PROCESSING_INSTRUCTION_NODE) {
+                doc.removeChild(child);
+            }
+            child = next;
+        }
+
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PACKET_BEGIN.getBytes(StandardCharsets.UTF_8));
+        transformer.transform(new DOMSource(doc), new StreamResult(out));
+        out.write('\n');
+        for (int i = 0; i < PADDING; i += 100) {
+            for (int j = 0; j < 99; j++) {
+                out.write(' ');
+            }
+            out.write('\n');
+        }
+        out.write(PACKET_END.getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+}
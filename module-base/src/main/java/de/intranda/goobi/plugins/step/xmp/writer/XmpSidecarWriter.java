@@ -0,0 +1,157 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Writes the XMP packet into a sidecar file next to the image, the image itself is not changed. The sidecar has the name of the image with the
+ * extension '.xmp'. If a sidecar already exists, the configured properties are replaced and all other properties are kept. Fields that cannot be
+ * written directly are written into the sidecar by the fallback writer, e.g. the configured exiftool command. The fallback writer is used for all
+ * jobs as well, if the configured parameters change the written properties.
+ */
+@Log4j2
+public class XmpSidecarWriter implements IXmpWriter {
+
+    public static final String EXTENSION = ".xmp";
+
+    // writes the sidecars of jobs with unsupported fields, can be null
+    private final IXmpWriter fallbackWriter;
+
+    // false, if the configured parameters must be passed to exiftool
+    private final boolean supportedParameters;
+
+    /**
+     * @param parameter configured parameters of the command
+     * @param fallbackWriter writer for jobs with fields unknown to the packet creator or with unsupported parameters. It gets the sidecar as image and
+     *            must be able to create it, like exiftool does for files with the extension '.xmp'. If null, these jobs fail
+     */
+    public XmpSidecarWriter(List<String> parameter, IXmpWriter fallbackWriter) {
+        this.fallbackWriter = fallbackWriter;
+        supportedParameters = XmpPacket.isSupportedParameterList(parameter);
+    }
+
+    /**
+     * Get the location of the sidecar file of an image
+     *
+     * @param image the image
+     * @return the sidecar file in the same folder
+     */
+    public static Path getSidecar(Path image) {
+        return getSidecar(image, false);
+    }
+
+    /**
+     * Get the location of the sidecar file of an image
+     *
+     * @param image the image
+     * @param fullName if true, the extension is appended to the full name of the image (e.g. 00000001.tif.xmp), otherwise it replaces the extension
+     *            of the image (e.g. 00000001.xmp)
+     * @return the sidecar file in the same folder
+     */
+    public static Path getSidecar(Path image, boolean fullName) {
+        String name = image.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return image.resolveSibling((fullName || dot == -1 ? name : name.substring(0, dot)) + EXTENSION);
+    }
+
+    /**
+     * Find the images that would share a sidecar file with another image of the folder, like 00000001.tif and 00000001.jpg. These images need
+     * sidecars with their full name
+     *
+     * @param images the images of a folder
+     * @return the file names of the images with the same name without extension as another image
+     */
+    public static Set<String> getClashingImages(List<Path> images) {
+        Map<Path, List<String>> imagesBySidecar = new HashMap<>();
+        for (Path image : images) {
+            imagesBySidecar.computeIfAbsent(getSidecar(image).getFileName(), k -> new ArrayList<>()).add(image.getFileName().toString());
+        }
+        Set<String> clashing = new HashSet<>();
+        for (List<String> names : imagesBySidecar.values()) {
+            if (names.size() > 1) {
+                clashing.addAll(names);
+            }
+        }
+        return clashing;
+    }
+
+    /**
+     * @param job the job
+     * @return the sidecar of the job, or the sidecar with the default name if the job has none
+     */
+    public static Path getSidecar(XmpJob job) {
+        return job.getSidecar() != null ? job.getSidecar() : getSidecar(job.getImage());
+    }
+
+    @Override
+    public boolean canWrite(XmpJob job) {
+        return fallbackWriter != null || isSupported(job);
+    }
+
+    private boolean isSupported(XmpJob job) {
+        return supportedParameters && XmpPacket.isSupported(job.getFields());
+    }
+
+    @Override
+    public long getWrittenBytes(XmpJob job) {
+        return XmpPacket.estimateSize(job.getFields());
+    }
+
+    @Override
+    public Map<Path, String> write(List<XmpJob> jobs) throws IOException, InterruptedException {
+        Map<Path, String> errors = new HashMap<>();
+        // jobs of the fallback writer, by sidecar
+        Map<Path, XmpJob> fallbackJobs = new LinkedHashMap<>();
+        for (XmpJob job : jobs) {
+            Path sidecar = getSidecar(job);
+            if (!isSupported(job)) {
+                if (fallbackWriter == null) {
+                    errors.put(job.getImage(), "Unsupported xmp field or parameter for sidecar files");
+                } else {
+                    fallbackJobs.put(sidecar, job);
+                }
+                continue;
+            }
+            try {
+                byte[] existing = Files.exists(sidecar) ? Files.readAllBytes(sidecar) : null;
+                byte[] packet = XmpPacket.create(existing, job.getFields());
+                // write into a temporary file first, so readers never see an incomplete sidecar
+                Path temp = Files.createTempFile(sidecar.getParent(), sidecar.getFileName().toString(), ".tmp");
+                try {
+                    Files.write(temp, packet);
+                    Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+                log.debug("XMP Plugin: xmp sidecar written to " + sidecar);
+            } catch (IOException e) {
+                log.error("XMP Plugin: cannot write xmp sidecar " + sidecar, e);
+                errors.put(job.getImage(), e.getMessage());
+            }
+        }
+        if (!fallbackJobs.isEmpty()) {
+            List<XmpJob> sidecarJobs = new ArrayList<>();
+            for (Map.Entry<Path, XmpJob> entry : fallbackJobs.entrySet()) {
+                sidecarJobs.add(new XmpJob(entry.getKey(), entry.getValue().getFields()));
+            }
+            // the errors are reported for the images
+            for (Map.Entry<Path, String> error : fallbackWriter.write(sidecarJobs).entrySet()) {
+                XmpJob job = fallbackJobs.get(error.getKey());
+                errors.put(job == null ? error.getKey() : job.getImage(), error.getValue());
+            }
+        }
+        return errors;
+    }
+
+}
@@ -0,0 +1,305 @@
+package de.intranda.goobi.plugins.step.xmp.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.intranda.goobi.plugins.step.xmp.util.DocstructField;
+import de.intranda.goobi.plugins.step.xmp.util.FilenameField;
+import de.intranda.goobi.plugins.step.xmp.util.IMetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.ImageMetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.MetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.StaticText;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+import ugh.dl.Person;
+import ugh.dl.Prefs;
+
+/**
+ * The expected values are the values the plugin wrote before the fields were compiled into a plan. The test document is a monograph with two
+ * chapters and four pages:
+ * <ul>
+ * <li>page 1: monograph, chapter one</li>
+ * <li>page 2: monograph, chapter one, illustration without title</li>
+ * <li>page 3: monograph</li>
+ * <li>page 4: not assigned</li>
+ * </ul>
+ */
+public class FieldEvaluationPlanTest {
+
+    private Prefs prefs;
+
+    private DigitalDocument digDoc;
+
+    private DocStruct monograph;
+
+    private DocStruct physical;
+
+    private List<DocStruct> pages = new ArrayList<>();
+
+    private List<Path> images = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        prefs = new Prefs();
+        prefs.loadPrefs(Paths.get(getClass().getResource("/ruleset.xml").toURI()).toString());
+        digDoc = new DigitalDocument();
+
+        monograph = createDocStruct("Monograph");
+        digDoc.setLogicalDocStruct(monograph);
+        addMetadata(monograph, "TitleDocMain", "Main title");
+        addPerson(monograph, "John", "Doe");
+        addPerson(monograph, null, "Smith");
+        DocStruct chapter = createDocStruct("Chapter");
+        monograph.addChild(chapter);
+        addMetadata(chapter, "TitleDocMain", "Chapter one");
+        DocStruct illustration = createDocStruct("Illustration");
+        chapter.addChild(illustration);
+
+        physical = createDocStruct("BoundBook");
+        digDoc.setPhysicalDocStruct(physical);
+        addMetadata(physical, "shelfmarksource", "Shelf 1");
+        for (int i = 1; i <= 4; i++) {
+            DocStruct page = createDocStruct("page");
+            addMetadata(page, "physPageNumber", String.valueOf(i));
+            addMetadata(page, "logicalPageNumber", "uncounted");
+            physical.addChild(page);
+            pages.add(page);
+            images.add(Paths.get("/opt/digiverso/images/0000000" + i + ".tif"));
+        }
+        // the references of a page are ordered from the main element to the deepest element
+        monograph.addReferenceTo(pages.get(0), "logical_physical");
+        chapter.addReferenceTo(pages.get(0), "logical_physical");
+        monograph.addReferenceTo(pages.get(1), "logical_physical");
+        chapter.addReferenceTo(pages.get(1), "logical_physical");
+        illustration.addReferenceTo(pages.get(1), "logical_physical");
+        monograph.addReferenceTo(pages.get(2), "logical_physical");
+    }
+
+    @Test
+    public void testMetadataLogical() {
+        assertValues(metadata("TitleDocMain", "logical"), "Main title", "Main title", "Main title", "Main title");
+    }
+
+    @Test
+    public void testMetadataPhysical() {
+        assertValues(metadata("shelfmarksource", "physical"), "Shelf 1", "Shelf 1", "Shelf 1", "Shelf 1");
+    }
+
+    @Test
+    public void testMetadataPage() {
+        assertValues(metadata("physPageNumber", "page"), "1", "2", "3", "4");
+    }
+
+    @Test
+    public void testMetadataAnchorOfMonograph() {
+        // without an anchor, the main element is used
+        assertValues(metadata("TitleDocMain", "anchor"), "Main title", "Main title", "Main title", "Main title");
+    }
+
+    @Test
+    public void testMetadataAnchor() throws Exception {
+        DocStruct periodical = createDocStruct("Periodical");
+        addMetadata(periodical, "TitleDocMain", "Journal");
+        DocStruct volume = createDocStruct("PeriodicalVolume");
+        addMetadata(volume, "TitleDocMain", "Volume 1");
+        periodical.addChild(volume);
+        digDoc.setLogicalDocStruct(periodical);
+        FieldValueResolver resolver = createResolver();
+        FieldEvaluationPlan plan = FieldEvaluationPlan.compile(Arrays.asList(field(" ", metadata("TitleDocMain", "anchor")),
+                field(" ", metadata("TitleDocMain", "logical"))), resolver, false);
+        List<Map.Entry<String, String>> values = plan.evaluate(pages.get(0), images.get(0));
+        assertEquals("Journal", values.get(0).getValue());
+        assertEquals("Volume 1", values.get(1).getValue());
+    }
+
+    @Test
+    public void testMetadataCurrent() {
+        // the deepest element, even if it has no value
+        assertValues(metadata("TitleDocMain", "current"), "Chapter one", "", "Main title", "");
+    }
+
+    @Test
+    public void testMetadataLast() {
+        // the deepest element with a value
+        assertValues(metadata("TitleDocMain", "last"), "Chapter one", "Chapter one", "Main title", "");
+    }
+
+    @Test
+    public void testMetadataAll() {
+        // elements without a value are added as empty entries
+        assertValues(metadata("TitleDocMain", "all"), "Main title;Chapter one", "Main title;Chapter one;", "Main title", "");
+    }
+
+    @Test
+    public void testPersons() {
+        MetadataField all = metadata("Author", "logical");
+        all.setSeparator(" / ");
+        assertValues(all, "Doe, John / Smith", "Doe, John / Smith", "Doe, John / Smith", "Doe, John / Smith");
+        MetadataField first = metadata("Author", "logical");
+        first.setUseFirst(true);
+        assertValues(first, "Doe, John", "Doe, John", "Doe, John", "Doe, John");
+    }
+
+    @Test
+    public void testPrefixAndSuffix() {
+        MetadataField field = metadata("TitleDocMain", "current");
+        field.setStaticPrefix("[");
+        field.setStaticSuffix("]");
+        // nothing is added for empty values
+        assertValues(field, "[Chapter one]", "", "[Main title]", "");
+    }
+
+    @Test
+    public void testDocstruct() {
+        assertValues(docstruct("first", "en"), "Monograph", "Monograph", "Monograph", "");
+        assertValues(docstruct("last", "de"), "Kapitel", "Abbildung", "Monografie", "");
+        assertValues(docstruct("all", "en"), "Monograph;Chapter", "Monograph;Chapter;Illustration", "Monograph", "");
+    }
+
+    @Test
+    public void testDefaultMode() {
+        FieldValueResolver resolver = createResolver();
+        FieldEvaluationPlan plan = FieldEvaluationPlan.compile(Arrays.asList(field(" ", docstruct("last", "en")),
+                field(" ", metadata("TitleDocMain", "current")), field(" ", metadata("TitleDocMain", "logical"))), resolver, true);
+        assertFalse(plan.isImageDependent());
+        // only the main elements are used
+        List<Map.Entry<String, String>> values = plan.evaluate(plan.computePage(null), images.get(0));
+        assertEquals("Monograph", values.get(0).getValue());
+        assertEquals("", values.get(1).getValue());
+        assertEquals("Main title", values.get(2).getValue());
+    }
+
+    @Test
+    public void testStaticSeparator() {
+        assertValues(field(" - ", text("A"), text("B"), metadata("TitleDocMain", "logical")), "A - B - Main title", "A - B - Main title",
+                "A - B - Main title", "A - B - Main title");
+    }
+
+    @Test
+    public void testEmptySeparator() {
+        // an empty metadata value still adds the separator, unless the field is empty
+        assertValues(field(" - ", text("A"), metadata("PublicationYear", "logical"), text("B")), "A -  - B", "A -  - B", "A -  - B", "A -  - B");
+        assertValues(field(" - ", metadata("PublicationYear", "logical"), text("B")), "B", "B", "B", "B");
+        assertValues(field(" - ", text("A"), metadata("TitleDocMain", "current"), text("B")), "A - Chapter one - B", "A -  - B",
+                "A - Main title - B", "A -  - B");
+        assertValues(field(" - ", metadata("TitleDocMain", "current"), text("B")), "Chapter one - B", "B", "Main title - B", "B");
+    }
+
+    @Test
+    public void testNotAssignedSeparator() {
+        // a page without structure elements adds neither a value nor a separator
+        assertValues(field(" - ", text("A"), docstruct("last", "en"), text("B")), "A - Chapter - B", "A - Illustration - B", "A - Monograph - B",
+                "A - B");
+        assertValues(field(" - ", docstruct("last", "en"), text("B")), "Chapter - B", "Illustration - B", "Monograph - B", "B");
+    }
+
+    @Test
+    public void testFilename() {
+        FilenameField name = new FilenameField();
+        FilenameField path = new FilenameField();
+        path.setUseAbsolutePath(true);
+        FieldEvaluationPlan plan = FieldEvaluationPlan.compile(Arrays.asList(field(" ", text("File"), name), field(" ", path)), createResolver(),
+                false);
+        assertTrue(plan.isImageDependent());
+        List<Map.Entry<String, String>> values = plan.evaluate(pages.get(0), images.get(0));
+        assertEquals("File 00000001.tif", values.get(0).getValue());
+        assertEquals(images.get(0).toString(), values.get(1).getValue());
+    }
+
+    @Test
+    public void testMissingMetadataType() {
+        FieldEvaluationPlan plan = FieldEvaluationPlan.compile(Collections.singletonList(field(" ", text("A"), metadata("Unknown", "logical"))),
+                createResolver(), false);
+        assertEquals(Collections.singleton("Unknown"), plan.getMissingMetadataTypes());
+        assertEquals("A", plan.evaluate(pages.get(0), images.get(0)).get(0).getValue());
+    }
+
+    /**
+     * Compile the field and check its value for each page
+     */
+    private void assertValues(IMetadataField configuredField, String... expected) {
+        assertValues(field(" ", configuredField), expected);
+    }
+
+    private void assertValues(ImageMetadataField field, String... expected) {
+        FieldEvaluationPlan plan = FieldEvaluationPlan.compile(Collections.singletonList(field), createResolver(), false);
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < pages.size(); i++) {
+            values.add(plan.evaluate(pages.get(i), images.get(i)).get(0).getValue());
+        }
+        assertEquals(Arrays.asList(expected), values);
+    }
+
+    /**
+     * Create the resolver like the plugin does, the anchor is the logical main element, if it is no anchor
+     */
+    private FieldValueResolver createResolver() {
+        DocStruct logical = digDoc.getLogicalDocStruct();
+        DocStruct anchor = logical;
+        if (logical.getType().isAnchor()) {
+            logical = logical.getAllChildren().get(0);
+        }
+        return new FieldValueResolver(null, null, prefs, digDoc, logical, anchor, physical);
+    }
+
+    private static ImageMetadataField field(String separator, IMetadataField... configuredFields) {
+        ImageMetadataField field = new ImageMetadataField();
+        field.setXmpName("-xmp-dc:Description");
+        field.setSeparator(separator);
+        for (IMetadataField configuredField : configuredFields) {
+            field.addField(configuredField);
+        }
+        return field;
+    }
+
+    private static MetadataField metadata(String name, String use) {
+        MetadataField field = new MetadataField();
+        field.setName(name);
+        field.setUse(use);
+        return field;
+    }
+
+    private static DocstructField docstruct(String use, String language) {
+        DocstructField field = new DocstructField();
+        field.setUse(use);
+        field.setLanguage(language);
+        return field;
+    }
+
+    private static StaticText text(String value) {
+        StaticText text = new StaticText();
+        text.setText(value);
+        return text;
+    }
+
+    private DocStruct createDocStruct(String type) throws Exception {
+        return digDoc.createDocStruct(prefs.getDocStrctTypeByName(type));
+    }
+
+    private void addMetadata(DocStruct docstruct, String type, String value) throws Exception {
+        Metadata metadata = new Metadata(prefs.getMetadataTypeByName(type));
+        metadata.setValue(value);
+        docstruct.addMetadata(metadata);
+    }
+
+    private void addPerson(DocStruct docstruct, String firstname, String lastname) throws Exception {
+        Person person = new Person(prefs.getMetadataTypeByName("Author"));
+        person.setFirstname(firstname);
+        person.setLastname(lastname);
+        docstruct.addPerson(person);
+    }
+
+}
@@ -0,0 +1,180 @@
+package de.intranda.goobi.plugins.step.xmp.writer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TiffXmpEmbedderTest {
+
+    // tags of the test images, the xmp tag is sorted in between
+    private static final int TAG_WIDTH = 256;
+    private static final int TAG_CUSTOM = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTripClassic() throws IOException {
+        Path image = createTiff(false, ByteOrder.LITTLE_ENDIAN);
+        assertNull(TiffXmpEmbedder.read(image));
+        byte[] packet = createPacket("Title");
+        TiffXmpEmbedder.write(image, packet);
+        assertArrayEquals(packet, TiffXmpEmbedder.read(image));
+        assertEquals(Arrays.asList(TAG_WIDTH, TiffXmpEmbedder.TAG_XMP, TAG_CUSTOM), readTags(image));
+    }
+
+    @Test
+    public void testRoundTripBigTiff() throws IOException {
+        Path image = createTiff(true, ByteOrder.BIG_ENDIAN);
+        assertNull(TiffXmpEmbedder.read(image));
+        byte[] packet = createPacket("Title");
+        TiffXmpEmbedder.write(image, packet);
+        assertArrayEquals(packet, TiffXmpEmbedder.read(image));
+        assertEquals(Arrays.asList(TAG_WIDTH, TiffXmpEmbedder.TAG_XMP, TAG_CUSTOM), readTags(image));
+    }
+
+    @Test
+    public void testOverwriteClassic() throws IOException {
+        assertOverwrite(createTiff(false, ByteOrder.BIG_ENDIAN));
+    }
+
+    @Test
+    public void testOverwriteBigTiff() throws IOException {
+        assertOverwrite(createTiff(true, ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Test
+    public void testAppendClassic() throws IOException {
+        assertAppend(createTiff(false, ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Test
+    public void testAppendBigTiff() throws IOException {
+        assertAppend(createTiff(true, ByteOrder.BIG_ENDIAN));
+    }
+
+    @Test
+    public void testResizePadding() {
+        byte[] packet = createPacket("Title");
+        byte[] smaller = TiffXmpEmbedder.resizePadding(packet, packet.length - 1000);
+        assertNotNull(smaller);
+        assertEquals(packet.length - 1000, smaller.length);
+        assertTrue(new String(smaller, StandardCharsets.UTF_8).endsWith("<?xpacket end=\"w\"?>"));
+        byte[] larger = TiffXmpEmbedder.resizePadding(packet, packet.length + 1000);
+        assertEquals(packet.length + 1000, larger.length);
+        // the packet without any padding is the minimum
+        assertNull(TiffXmpEmbedder.resizePadding(packet, getContentLength(packet) - 1));
+    }
+
+    /**
+     * A second packet with slightly different content is written into the padding of the first packet, the file size does not change
+     */
+    private void assertOverwrite(Path image) throws IOException {
+        TiffXmpEmbedder.write(image, createPacket("First title"));
+        long size = Files.size(image);
+        byte[] first = TiffXmpEmbedder.read(image);
+        byte[] packet = createPacket("Second, longer title");
+        TiffXmpEmbedder.write(image, packet);
+        assertEquals(size, Files.size(image));
+        byte[] stored = TiffXmpEmbedder.read(image);
+        assertEquals(first.length, stored.length);
+        assertEquals(new String(packet, 0, getContentLength(packet), StandardCharsets.UTF_8),
+                new String(stored, 0, getContentLength(stored), StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList(TAG_WIDTH, TiffXmpEmbedder.TAG_XMP, TAG_CUSTOM), readTags(image));
+    }
+
+    /**
+     * A packet larger than the space of the existing packet is appended
+     */
+    private void assertAppend(Path image) throws IOException {
+        TiffXmpEmbedder.write(image, createPacket("Title"));
+        long size = Files.size(image);
+        char[] title = new char[5000];
+        Arrays.fill(title, 'x');
+        byte[] packet = createPacket(new String(title));
+        TiffXmpEmbedder.write(image, packet);
+        assertTrue(Files.size(image) > size);
+        assertArrayEquals(packet, TiffXmpEmbedder.read(image));
+        assertEquals(Arrays.asList(TAG_WIDTH, TiffXmpEmbedder.TAG_XMP, TAG_CUSTOM), readTags(image));
+    }
+
+    private static byte[] createPacket(String title) {
+        try {
+            List<Map.Entry<String, String>> fields = Collections.singletonList(new AbstractMap.SimpleImmutableEntry<>("-xmp-dc:Title", title));
+            return XmpPacket.create(null, fields);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // length of the packet without padding and trailer
+    private static int getContentLength(byte[] packet) {
+        String text = new String(packet, StandardCharsets.ISO_8859_1);
+        int end = text.lastIndexOf("<?xpacket end");
+        while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Create a minimal tiff file with a single IFD with two entries
+     */
+    private Path createTiff(boolean big, ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(200).order(order);
+        byte marker = (byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M');
+        buffer.put(marker).put(marker);
+        if (big) {
+            buffer.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(16);
+            buffer.putLong(2);
+            buffer.putShort((short) TAG_WIDTH).putShort((short) 3).putLong(1).putLong(100);
+            buffer.putShort((short) TAG_CUSTOM).putShort((short) 3).putLong(1).putLong(5);
+            buffer.putLong(0);
+        } else {
+            buffer.putShort((short) 42).putInt(8);
+            buffer.putShort((short) 2);
+            buffer.putShort((short) TAG_WIDTH).putShort((short) 3).putInt(1).putInt(100);
+            buffer.putShort((short) TAG_CUSTOM).putShort((short) 3).putInt(1).putInt(5);
+            buffer.putInt(0);
+        }
+        Path image = folder.newFile(big ? "big.tif" : "classic.tif").toPath();
+        Files.write(image, Arrays.copyOf(buffer.array(), buffer.position()));
+        return image;
+    }
+
+    /**
+     * Read the tags of the first IFD
+     */
+    private static List<Integer> readTags(Path image) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(image));
+        buffer.order(buffer.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        boolean big = buffer.getShort(2) == 43;
+        int offset = (int) (big ? buffer.getLong(8) : Integer.toUnsignedLong(buffer.getInt(4)));
+        int count = (int) (big ? buffer.getLong(offset) : buffer.getShort(offset));
+        int entries = offset + (big ? 8 : 2);
+        Integer[] tags = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            tags[i] = Short.toUnsignedInt(buffer.getShort(entries + i * (big ? 20 : 12)));
+        }
+        return Arrays.asList(tags);
+    }
+
+}
@@ -0,0 +1,62 @@
+package de.intranda.goobi.plugins.step.xmp.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.intranda.goobi.plugins.step.xmp.evaluation.FieldValueResolver;
+import de.intranda.goobi.plugins.step.xmp.util.DocstructField;
+import ugh.dl.DocStruct;
+
+/**
+ * Computes the names of the structure elements for each page of the process, once for each value of the 'use' attribute.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocstructFieldBenchmark {
+
+    @Param({ "first", "last", "all" })
+    private String use;
+
+    @Param({ "1000", "10000" })
+    private int pages;
+
+    @Param({ "2", "6" })
+    private int depth;
+
+    private SyntheticDocument document;
+
+    private DocstructField field;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        document = SyntheticDocument.create(pages, depth);
+        field = FieldEvaluationBenchmark.docstruct(use);
+    }
+
+    @Benchmark
+    public void resolveAllPages(Blackhole blackhole) {
+        FieldValueResolver resolver = new FieldValueResolver(null, null, document.getPrefs(), document.getDigDoc(), document.getLogical(),
+                document.getAnchor(), document.getPhysical());
+        for (DocStruct page : document.getPages()) {
+            blackhole.consume(resolver.getDocstructValue(field, page));
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package de.intranda.goobi.plugins.step.xmp.benchmark;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.intranda.goobi.plugins.step.xmp.evaluation.FieldEvaluationPlan;
+import de.intranda.goobi.plugins.step.xmp.evaluation.FieldValueResolver;
+import de.intranda.goobi.plugins.step.xmp.util.DocstructField;
+import de.intranda.goobi.plugins.step.xmp.util.FilenameField;
+import de.intranda.goobi.plugins.step.xmp.util.IMetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.ImageMetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.MetadataField;
+import de.intranda.goobi.plugins.step.xmp.util.StaticText;
+import ugh.dl.DocStruct;
+
+/**
+ * Builds the tag set of all images of a process, as the plugin does it for each run: the resolver and the plan are created, the page values are
+ * computed once per page and the fields are evaluated for each image. The fields are similar to the default configuration, properties and
+ * variables are left out, because they need a process from the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FieldEvaluationBenchmark {
+
+    @Param({ "100", "1000", "10000", "50000" })
+    private int pages;
+
+    @Param({ "2", "6" })
+    private int depth;
+
+    private SyntheticDocument document;
+
+    private List<ImageMetadataField> configuredFields;
+
+    private List<Path> images;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        document = SyntheticDocument.create(pages, depth);
+        images = new ArrayList<>(pages);
+        for (int i = 1; i <= pages; i++) {
+            images.add(Paths.get("/opt/digiverso/goobi/metadata/1/images/master_media", String.format("%08d.tif", i)));
+        }
+
+        configuredFields = new ArrayList<>();
+        configuredFields.add(createField("Xmp.dc.title", metadata("TitleDocMain", "logical")));
+        configuredFields.add(createField("Xmp.dc.creator", metadata("Author", "logical")));
+        configuredFields.add(createField("Xmp.photoshop.Headline", metadata("TitleDocMain", "anchor"), metadata("TitleDocMain", "current")));
+        configuredFields.add(createField("Xmp.dc.description", docstruct("all"), metadata("TitleDocMain", "all")));
+        configuredFields.add(createField("Xmp.dc.source", metadata("shelfmarksource", "physical"), staticText("Page"),
+                metadata("physPageNumber", "page")));
+        configuredFields.add(createField("Xmp.xmpMM.PreservedFileName", filename()));
+    }
+
+    @Benchmark
+    public void evaluateAllImages(Blackhole blackhole) {
+        FieldValueResolver resolver = new FieldValueResolver(null, null, document.getPrefs(), document.getDigDoc(), document.getLogical(),
+                document.getAnchor(), document.getPhysical());
+        FieldEvaluationPlan plan = FieldEvaluationPlan.compile(configuredFields, resolver, false);
+        List<DocStruct> pageList = document.getPages();
+        for (int i = 0; i < pageList.size(); i++) {
+            String[] pageValues = plan.computePage(pageList.get(i));
+            blackhole.consume(plan.evaluate(pageValues, images.get(i)));
+        }
+    }
+
+    static ImageMetadataField createField(String xmpName, IMetadataField... fields) {
+        ImageMetadataField field = new ImageMetadataField();
+        field.setXmpName(xmpName);
+        for (IMetadataField f : fields) {
+            field.addField(f);
+        }
+        return field;
+    }
+
+    static MetadataField metadata(String name, String use) {
+        MetadataField field = new MetadataField();
+        field.setName(name);
+        field.setUse(use);
+        return field;
+    }
+
+    static DocstructField docstruct(String use) {
+        DocstructField field = new DocstructField();
+        field.setUse(use);
+        field.setLanguage("de");
+        return field;
+    }
+
+    private static StaticText staticText(String text) {
+        StaticText field = new StaticText();
+        field.setText(text);
+        return field;
+    }
+
+    private static FilenameField filename() {
+        return new FilenameField();
+    }
+
+}
@@ -0,0 +1,77 @@
+package de.intranda.goobi.plugins.step.xmp.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.intranda.goobi.plugins.step.xmp.evaluation.FieldValueResolver;
+import de.intranda.goobi.plugins.step.xmp.util.MetadataField;
+import ugh.dl.DocStruct;
+import ugh.dl.MetadataType;
+
+/**
+ * Computes the value of a single metadata field for each page of the process, once for each value of the 'use' attribute. The resolver is
+ * created for each invocation, so the cached values of the previous invocation are not reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataFieldBenchmark {
+
+    @Param({ "page", "current", "last", "all", "physical", "logical", "anchor" })
+    private String use;
+
+    @Param({ "1000", "10000" })
+    private int pages;
+
+    @Param({ "4" })
+    private int depth;
+
+    private SyntheticDocument document;
+
+    private MetadataField field;
+
+    private MetadataType metadataType;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        document = SyntheticDocument.create(pages, depth);
+        switch (use) {
+            case "page":
+                field = FieldEvaluationBenchmark.metadata("physPageNumber", use);
+                break;
+            case "physical":
+                field = FieldEvaluationBenchmark.metadata("shelfmarksource", use);
+                break;
+            default:
+                field = FieldEvaluationBenchmark.metadata("TitleDocMain", use);
+                break;
+        }
+        metadataType = document.getPrefs().getMetadataTypeByName(field.getName());
+    }
+
+    @Benchmark
+    public void resolveAllPages(Blackhole blackhole) {
+        FieldValueResolver resolver = new FieldValueResolver(null, null, document.getPrefs(), document.getDigDoc(), document.getLogical(),
+                document.getAnchor(), document.getPhysical());
+        for (DocStruct page : document.getPages()) {
+            blackhole.consume(resolver.getMetadataFieldValue(field, metadataType, page));
+        }
+    }
+
+}
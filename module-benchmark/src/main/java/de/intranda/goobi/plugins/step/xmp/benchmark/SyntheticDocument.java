@@ -0,0 +1,181 @@
+package de.intranda.goobi.plugins.step.xmp.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import lombok.Getter;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.DocStructType;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataType;
+import ugh.dl.Person;
+import ugh.dl.Prefs;
+
+/**
+ * Creates a digital document without ruleset and METS file. The document consists of a periodical, a single volume with all pages and a tree of
+ * chapters below the volume. Each chapter is split into four sub chapters until the configured depth is reached, so the pages are assigned to
+ * depth + 1 structure elements.
+ */
+@Getter
+public class SyntheticDocument {
+
+    private static final String REFERENCE_TYPE = "logical_physical";
+
+    private final Prefs prefs = new Prefs();
+
+    private final DigitalDocument digDoc = new DigitalDocument();
+
+    private DocStruct anchor;
+
+    private DocStruct logical;
+
+    private DocStruct physical;
+
+    private final List<DocStruct> pages = new ArrayList<>();
+
+    private MetadataType title;
+
+    private MetadataType author;
+
+    private MetadataType shelfmark;
+
+    private MetadataType physPageNumber;
+
+    private MetadataType logicalPageNumber;
+
+    private final List<MetadataType> metadataTypes = new ArrayList<>();
+
+    private int chapterCounter;
+
+    private SyntheticDocument() {
+    }
+
+    /**
+     * Create the document
+     *
+     * @param numberOfPages number of pages
+     * @param depth number of chapter levels below the volume
+     * @return the document
+     * @throws Exception if the document cannot be created
+     */
+    public static SyntheticDocument create(int numberOfPages, int depth) throws Exception {
+        SyntheticDocument document = new SyntheticDocument();
+        document.createTypes();
+        document.createStructure(numberOfPages, depth);
+        return document;
+    }
+
+    private void createTypes() {
+        title = createMetadataType("TitleDocMain", false);
+        author = createMetadataType("Author", true);
+        shelfmark = createMetadataType("shelfmarksource", false);
+        physPageNumber = createMetadataType("physPageNumber", false);
+        logicalPageNumber = createMetadataType("logicalPageNumber", false);
+
+        DocStructType periodical = createDocStructType("Periodical", "Zeitschrift", "Volume");
+        periodical.setAnchorClass("MultiVolume");
+        createDocStructType("Volume", "Band", "Chapter");
+        createDocStructType("Chapter", "Kapitel", "Chapter");
+        createDocStructType("BoundBook", "Gebundenes Buch", "page");
+        createDocStructType("page", "Seite");
+    }
+
+    private MetadataType createMetadataType(String name, boolean person) {
+        MetadataType type = new MetadataType();
+        type.setName(name);
+        type.setIsPerson(person);
+        HashMap<String, String> languages = new HashMap<>();
+        languages.put("en", name);
+        type.setAllLanguages(languages);
+        prefs.addMetadataType(type);
+        metadataTypes.add(type);
+        return type;
+    }
+
+    private DocStructType createDocStructType(String name, String germanName, String... children) {
+        DocStructType type = new DocStructType();
+        type.setName(name);
+        HashMap<String, String> languages = new HashMap<>();
+        languages.put("en", name);
+        languages.put("de", germanName);
+        type.setAllLanguages(languages);
+        for (MetadataType metadataType : metadataTypes) {
+            type.addMetadataType(metadataType, "*", false, false);
+        }
+        for (String child : children) {
+            type.addDocStructTypeAsChild(child);
+        }
+        prefs.addDocStructType(type);
+        return type;
+    }
+
+    private void createStructure(int numberOfPages, int depth) throws Exception {
+        anchor = createDocStruct("Periodical", "Periodical");
+        logical = createDocStruct("Volume", "Volume 1");
+        addPerson(logical, "Mustermann", "Max");
+        anchor.addChild(logical);
+        digDoc.setLogicalDocStruct(anchor);
+
+        physical = digDoc.createDocStruct(prefs.getDocStrctTypeByName("BoundBook"));
+        addMetadata(physical, shelfmark, "Sig. 4711");
+        digDoc.setPhysicalDocStruct(physical);
+
+        DocStructType pageType = prefs.getDocStrctTypeByName("page");
+        for (int i = 1; i <= numberOfPages; i++) {
+            DocStruct page = digDoc.createDocStruct(pageType);
+            addMetadata(page, physPageNumber, String.valueOf(i));
+            addMetadata(page, logicalPageNumber, i % 10 == 0 ? "uncounted" : String.valueOf(i));
+            physical.addChild(page);
+            pages.add(page);
+        }
+
+        addPages(logical, 0, numberOfPages);
+        addChapters(logical, 0, numberOfPages, depth);
+    }
+
+    /**
+     * Split the page range into four chapters and continue with each chapter, until the depth is reached or the range is too small
+     */
+    private void addChapters(DocStruct parent, int from, int to, int depth) throws Exception {
+        if (depth == 0 || to - from < 4) {
+            return;
+        }
+        int step = (to - from) / 4;
+        for (int i = 0; i < 4; i++) {
+            int start = from + i * step;
+            int end = i == 3 ? to : start + step;
+            DocStruct chapter = createDocStruct("Chapter", "Chapter " + ++chapterCounter);
+            parent.addChild(chapter);
+            addPages(chapter, start, end);
+            addChapters(chapter, start, end, depth - 1);
+        }
+    }
+
+    private void addPages(DocStruct docstruct, int from, int to) {
+        for (int i = from; i < to; i++) {
+            docstruct.addReferenceTo(pages.get(i), REFERENCE_TYPE);
+        }
+    }
+
+    private DocStruct createDocStruct(String type, String mainTitle) throws Exception {
+        DocStruct docstruct = digDoc.createDocStruct(prefs.getDocStrctTypeByName(type));
+        addMetadata(docstruct, title, mainTitle);
+        return docstruct;
+    }
+
+    private static void addMetadata(DocStruct docstruct, MetadataType type, String value) throws Exception {
+        Metadata metadata = new Metadata(type);
+        metadata.setValue(value);
+        docstruct.addMetadata(metadata);
+    }
+
+    private void addPerson(DocStruct docstruct, String lastname, String firstname) throws Exception {
+        Person person = new Person(author);
+        person.setLastname(lastname);
+        person.setFirstname(firstname);
+        docstruct.addPerson(person);
+    }
+
+}
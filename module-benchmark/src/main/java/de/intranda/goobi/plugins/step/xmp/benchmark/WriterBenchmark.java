@@ -0,0 +1,114 @@
+package de.intranda.goobi.plugins.step.xmp.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.step.xmp.writer.ExiftoolBatchWriter;
+import de.intranda.goobi.plugins.step.xmp.writer.ExiftoolGroupWriter;
+import de.intranda.goobi.plugins.step.xmp.writer.ExiftoolScriptWriter;
+import de.intranda.goobi.plugins.step.xmp.writer.IXmpWriter;
+import de.intranda.goobi.plugins.step.xmp.writer.XmpJob;
+
+/**
+ * Compares the cost of starting the command for each image with the execution modes that write several images with a single call. Exiftool is
+ * replaced by a shell script that does nothing but report success, so the result shows the overhead of the process handling and not the time
+ * exiftool needs to write the files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WriterBenchmark {
+
+    // answers the status lines of an argument file like exiftool does, any other call succeeds immediately
+    private static final String STUB_SCRIPT = "#!/bin/sh\n"
+            + "if [ \"$1\" = \"-@\" ]; then\n"
+            + "  awk '/^-echo3$/{getline; sub(/\\$\\{status\\}/, \"0\"); print; next} /^-echo4$/{getline; print > \"/dev/stderr\"; next}' \"$2\"\n"
+            + "fi\n"
+            + "exit 0\n";
+
+    @Param({ "script", "group", "batch" })
+    private String mode;
+
+    @Param({ "10", "100" })
+    private int images;
+
+    private Path folder;
+
+    private IXmpWriter writer;
+
+    private List<XmpJob> jobs;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("xmp-benchmark");
+        Path script = folder.resolve("exiftool.sh");
+        Files.write(script, STUB_SCRIPT.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-xr-x"));
+
+        List<String> parameter = Arrays.asList("-overwrite_original", "-q", "{PARAM}", "{FILE}");
+        switch (mode) {
+            case "group":
+                writer = new ExiftoolGroupWriter(script.toString(), parameter, images);
+                break;
+            case "batch":
+                writer = new ExiftoolBatchWriter(script.toString(), parameter, images);
+                break;
+            case "script":
+            default:
+                writer = new ExiftoolScriptWriter(script.toString(), parameter);
+                break;
+        }
+
+        // default mode: all images get the same fields
+        List<Map.Entry<String, String>> fields = new ArrayList<>();
+        fields.add(new AbstractMap.SimpleImmutableEntry<>("Xmp.dc.title", "Volume 1"));
+        fields.add(new AbstractMap.SimpleImmutableEntry<>("Xmp.dc.creator", "Mustermann, Max"));
+        fields.add(new AbstractMap.SimpleImmutableEntry<>("Xmp.dc.source", "Sig. 4711"));
+        jobs = new ArrayList<>(images);
+        for (int i = 1; i <= images; i++) {
+            Path image = Files.createFile(folder.resolve(String.format("%08d.tif", i)));
+            jobs.add(new XmpJob(image, fields));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Map<Path, String> writeAllImages() throws IOException, InterruptedException {
+        return writer.write(jobs);
+    }
+
+}